@@ -30,6 +30,7 @@ public class TestApplication extends Application {
                 Log.i("TAG", "Native memory: " + FileUtils.readableByteCount(Debug.getNativeHeapAllocatedSize(), false));
                 Log.i("TAG", "ImageData: " + Image.getNumberOfImageData());
                 Log.i("TAG", "ImageRenderer: " + Image.getNumberOfImageRenderer());
+                Log.i("TAG", ImageMetrics.dump());
                 SimpleHandler.getInstance().postDelayed(this, 2000);
             }
         }.run();
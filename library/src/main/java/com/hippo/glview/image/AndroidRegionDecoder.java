@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link RegionDecoder} backed by {@link BitmapRegionDecoder},
+ * for JPEG and PNG.
+ */
+public class AndroidRegionDecoder implements RegionDecoder {
+
+    private final BitmapRegionDecoder mDecoder;
+
+    private AndroidRegionDecoder(BitmapRegionDecoder decoder) {
+        mDecoder = decoder;
+    }
+
+    /**
+     * Create a AndroidRegionDecoder
+     *
+     * @param is the input stream, it is not closed
+     * @return the AndroidRegionDecoder, or null if failed
+     */
+    @Nullable
+    public static AndroidRegionDecoder newInstance(InputStream is) {
+        try {
+            return new AndroidRegionDecoder(BitmapRegionDecoder.newInstance(is, false));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeRegion(@NonNull Rect region, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        try {
+            return mDecoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder is recycled or the region is out of the image
+            return null;
+        }
+    }
+
+    @Override
+    public void recycle() {
+        mDecoder.recycle();
+    }
+}
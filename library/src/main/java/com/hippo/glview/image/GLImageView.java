@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.content.Context;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.widget.OverScroller;
+
+import com.hippo.glview.glrenderer.GLCanvas;
+import com.hippo.glview.view.GLView;
+
+/**
+ * Shows an {@link ImageTexture} which can be panned, flung and zoomed.
+ * Only the visible part of the texture is drawn, and the viewport is
+ * reported to the texture, so the uploader puts visible tiles in first.
+ * Touch events and rendering are expected in the same lock of GLRoot.
+ */
+public class GLImageView extends GLView implements ImageTexture.Callback {
+
+    private static final float MAX_SCALE_TIMES = 4.0f;
+    private static final float DOUBLE_TAP_SCALE_TIMES = 2.0f;
+
+    private final GestureDetector mGestureDetector;
+    private final ScaleGestureDetector mScaleGestureDetector;
+    private final OverScroller mScroller;
+
+    private ImageTexture mTexture;
+
+    // Where the left-top of the image is in this view
+    private float mOffsetX;
+    private float mOffsetY;
+    private float mScale = 1.0f;
+    // The scale to fit this view, the min scale
+    private float mFitScale = 1.0f;
+    private boolean mScaleValid;
+
+    private final RectF mSource = new RectF();
+    private final RectF mTarget = new RectF();
+    private final RectF mViewport = new RectF();
+    // For the velocity of the viewport
+    private float mLastOffsetX;
+    private float mLastOffsetY;
+    private long mLastRenderTime;
+
+    public GLImageView(Context context) {
+        final GestureListener listener = new GestureListener();
+        mGestureDetector = new GestureDetector(context, listener);
+        mGestureDetector.setOnDoubleTapListener(listener);
+        mScaleGestureDetector = new ScaleGestureDetector(context, listener);
+        mScroller = new OverScroller(context);
+    }
+
+    /**
+     * Sets the texture to show, the scale is reset. The old texture
+     * is not recycled, and its callback is cleared.
+     */
+    public void setImageTexture(ImageTexture texture) {
+        if (mTexture == texture) {
+            return;
+        }
+        if (mTexture != null) {
+            mTexture.setCallback(null);
+            mTexture.setViewport(null);
+        }
+        mTexture = texture;
+        if (texture != null) {
+            texture.setCallback(this);
+        }
+        mScroller.forceFinished(true);
+        mScaleValid = false;
+        invalidate();
+    }
+
+    public ImageTexture getImageTexture() {
+        return mTexture;
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    /**
+     * Scales the image around the point (focusX, focusY) in this view.
+     * The scale is clamped between fit scale and {@value #MAX_SCALE_TIMES} times of it.
+     */
+    public void setScale(float scale, float focusX, float focusY) {
+        if (!ensureScale()) {
+            return;
+        }
+        scale = Math.max(mFitScale, Math.min(mFitScale * MAX_SCALE_TIMES, scale));
+        final float ratio = scale / mScale;
+        mOffsetX = focusX - (focusX - mOffsetX) * ratio;
+        mOffsetY = focusY - (focusY - mOffsetY) * ratio;
+        mScale = scale;
+        clampOffset();
+        invalidate();
+    }
+
+    @Override
+    protected void onLayout(boolean changeSize, int left, int top, int right, int bottom) {
+        super.onLayout(changeSize, left, top, right, bottom);
+        if (changeSize) {
+            mScroller.forceFinished(true);
+            mScaleValid = false;
+        }
+    }
+
+    // Fits the image to this view if the scale is not valid.
+    // Returns false if there is nothing to show.
+    private boolean ensureScale() {
+        final ImageTexture texture = mTexture;
+        final int viewWidth = getWidth();
+        final int viewHeight = getHeight();
+        if (texture == null || viewWidth <= 0 || viewHeight <= 0) {
+            return false;
+        }
+        if (!mScaleValid) {
+            mFitScale = Math.min((float) viewWidth / texture.getWidth(),
+                    (float) viewHeight / texture.getHeight());
+            mScale = mFitScale;
+            mScaleValid = true;
+            clampOffset();
+            mLastOffsetX = mOffsetX;
+            mLastOffsetY = mOffsetY;
+        }
+        return true;
+    }
+
+    // Centers the image if it is smaller than this view,
+    // otherwise keeps this view in it.
+    private void clampOffset() {
+        mOffsetX = clampOffset(mOffsetX, mTexture.getWidth() * mScale, getWidth());
+        mOffsetY = clampOffset(mOffsetY, mTexture.getHeight() * mScale, getHeight());
+    }
+
+    private static float clampOffset(float offset, float content, float view) {
+        if (content <= view) {
+            return (view - content) / 2;
+        } else {
+            return Math.max(view - content, Math.min(0.0f, offset));
+        }
+    }
+
+    @Override
+    protected boolean onTouch(MotionEvent event) {
+        if (mTexture == null) {
+            return false;
+        }
+        mScaleGestureDetector.onTouchEvent(event);
+        if (!mScaleGestureDetector.isInProgress()) {
+            mGestureDetector.onTouchEvent(event);
+        }
+        return true;
+    }
+
+    @Override
+    public void onRender(GLCanvas canvas) {
+        if (!ensureScale()) {
+            return;
+        }
+        final ImageTexture texture = mTexture;
+
+        if (mScroller.computeScrollOffset()) {
+            mOffsetX = mScroller.getCurrX();
+            mOffsetY = mScroller.getCurrY();
+            invalidate();
+        }
+
+        // The velocity of the viewport on the image, in pixels of this view
+        final long now = SystemClock.uptimeMillis();
+        final long interval = now - mLastRenderTime;
+        float velocityX = 0.0f;
+        float velocityY = 0.0f;
+        if (interval > 0 && interval < 100) {
+            velocityX = (mLastOffsetX - mOffsetX) * 1000 / interval;
+            velocityY = (mLastOffsetY - mOffsetY) * 1000 / interval;
+        }
+        mLastOffsetX = mOffsetX;
+        mLastOffsetY = mOffsetY;
+        mLastRenderTime = now;
+
+        // Only the visible part of the image
+        final float scale = mScale;
+        final RectF target = mTarget;
+        target.set(mOffsetX, mOffsetY,
+                mOffsetX + texture.getWidth() * scale, mOffsetY + texture.getHeight() * scale);
+        if (!target.intersect(0, 0, getWidth(), getHeight())) {
+            return;
+        }
+        mSource.set((target.left - mOffsetX) / scale, (target.top - mOffsetY) / scale,
+                (target.right - mOffsetX) / scale, (target.bottom - mOffsetY) / scale);
+        if (mSource.isEmpty()) {
+            return;
+        }
+
+        mViewport.set(0, 0, getWidth(), getHeight());
+        texture.setViewport(mViewport, velocityX, velocityY);
+        texture.draw(canvas, mSource, target);
+    }
+
+    @Override
+    public void invalidateImageTexture(ImageTexture who) {
+        invalidate();
+    }
+
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener
+            implements ScaleGestureDetector.OnScaleGestureListener {
+
+        @Override
+        public boolean onDown(MotionEvent e) {
+            mScroller.forceFinished(true);
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            if (ensureScale()) {
+                mOffsetX -= distanceX;
+                mOffsetY -= distanceY;
+                clampOffset();
+                invalidate();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+            if (ensureScale()) {
+                final int minX = (int) Math.min(mOffsetX, getWidth() - mTexture.getWidth() * mScale);
+                final int minY = (int) Math.min(mOffsetY, getHeight() - mTexture.getHeight() * mScale);
+                mScroller.fling((int) mOffsetX, (int) mOffsetY, (int) velocityX, (int) velocityY,
+                        minX, (int) mOffsetX > 0 ? (int) mOffsetX : 0,
+                        minY, (int) mOffsetY > 0 ? (int) mOffsetY : 0);
+                invalidate();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            if (ensureScale()) {
+                // Zoom in from fit scale, otherwise back to fit scale
+                final float scale = mScale > mFitScale * 1.01f ?
+                        mFitScale : mFitScale * DOUBLE_TAP_SCALE_TIMES;
+                setScale(scale, e.getX(), e.getY());
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            setScale(mScale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            return true;
+        }
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            mScroller.forceFinished(true);
+            return true;
+        }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+        }
+    }
+}
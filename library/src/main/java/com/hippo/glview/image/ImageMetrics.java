@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.glview.image;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of uploading, decoding and animating, for apps
+ * to poll or export. Updating them is cheap, no lock is taken.
+ */
+public final class ImageMetrics {
+
+    // Uploading
+    public static final Counter TILES_UPLOADED = new Counter("tiles_uploaded");
+    public static final Counter BYTES_UPLOADED = new Counter("bytes_uploaded");
+    // Bytes uploaded by the uploader in each onGLIdle(), about once a frame
+    public static final Histogram BYTES_UPLOADED_PER_IDLE = new Histogram("bytes_uploaded_per_idle");
+    public static final Histogram UPLOAD_IDLE_TIME_US = new Histogram("upload_idle_time_us");
+    // onGLIdle() calls which take longer than the budget
+    public static final Counter UPLOAD_OVER_BUDGET = new Counter("upload_over_budget");
+    public static final Counter UPLOAD_QUEUE_DEPTH = new Counter("upload_queue_depth");
+
+    // Decoding and animating
+    // From creating a texture to its image decoded
+    public static final Histogram FIRST_DECODE_LATENCY_MS = new Histogram("first_decode_latency_ms");
+    // How late frames are shown than scheduled
+    public static final Histogram FRAME_DRIFT_MS = new Histogram("frame_drift_ms");
+
+    // Tile pool
+    public static final Counter TILE_POOL_HITS = new Counter("tile_pool_hits");
+    public static final Counter TILE_POOL_MISSES = new Counter("tile_pool_misses");
+
+    private static final Counter[] COUNTERS = {
+            TILES_UPLOADED, BYTES_UPLOADED, UPLOAD_OVER_BUDGET, UPLOAD_QUEUE_DEPTH,
+            TILE_POOL_HITS, TILE_POOL_MISSES,
+    };
+    private static final Histogram[] HISTOGRAMS = {
+            BYTES_UPLOADED_PER_IDLE, UPLOAD_IDLE_TIME_US, FIRST_DECODE_LATENCY_MS, FRAME_DRIFT_MS,
+    };
+
+    private ImageMetrics() {}
+
+    /**
+     * Returns bytes of texture memory of all tiles which are uploaded,
+     * including pooled tiles. It walks all textures, don't call it too often.
+     */
+    public static long getResidentTextureBytes() {
+        return ImageTexture.getResidentTextureBytes();
+    }
+
+    // hits / (hits + misses), 0 if no tile is obtained
+    public static float getTilePoolHitRate() {
+        final long hits = TILE_POOL_HITS.get();
+        final long total = hits + TILE_POOL_MISSES.get();
+        return total == 0 ? 0.0f : (float) hits / total;
+    }
+
+    public static void reset() {
+        for (final Counter counter : COUNTERS) {
+            // Queue depth is a level, not a count of events
+            if (counter != UPLOAD_QUEUE_DEPTH) {
+                counter.reset();
+            }
+        }
+        for (final Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Prints all metrics, one in each line.
+     */
+    public static String dump() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Counter counter : COUNTERS) {
+            sb.append(counter).append('\n');
+        }
+        for (final Histogram histogram : HISTOGRAMS) {
+            sb.append(histogram).append('\n');
+        }
+        sb.append("tile_pool_hit_rate ").append(getTilePoolHitRate()).append('\n');
+        sb.append("resident_texture_bytes ").append(getResidentTextureBytes()).append('\n');
+        return sb.toString();
+    }
+
+    public static final class Counter {
+
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+
+        private Counter(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        void set(long value) {
+            mValue.set(value);
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return mName + " " + mValue.get();
+        }
+    }
+
+    /**
+     * Counts values in buckets of powers of 2, so percentiles are
+     * upper bounds within twice the real value.
+     */
+    public static final class Histogram {
+
+        // Bucket i is for values in [2^(i-1), 2^i), bucket 0 for 0 and less
+        private static final int BUCKET_COUNT = 40;
+
+        private final String mName;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private Histogram(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        void record(long value) {
+            final int bucket = value <= 0 ? 0 :
+                    Math.min(64 - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            for (;;) {
+                final long max = mMax.get();
+                if (value <= max || mMax.compareAndSet(max, value)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public float getMean() {
+            final long count = mCount.get();
+            return count == 0 ? 0.0f : (float) mSum.get() / count;
+        }
+
+        /**
+         * Returns the upper bound of the bucket which the percentile falls in.
+         *
+         * @param percentile in [0, 1]
+         */
+        public long getPercentile(float percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return i == 0 ? 0 : Math.min(1L << i, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return mName + " count=" + getCount() + " mean=" + getMean() +
+                    " p50=" + getPercentile(0.5f) + " p99=" + getPercentile(0.99f) +
+                    " max=" + getMax();
+        }
+    }
+}
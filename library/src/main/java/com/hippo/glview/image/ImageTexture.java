@@ -16,8 +16,11 @@
 
 package com.hippo.glview.image;
 
+import android.graphics.Bitmap;
+import android.graphics.Color;
 import android.graphics.RectF;
 import android.graphics.drawable.Animatable;
+import android.opengl.GLES20;
 import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
@@ -33,32 +36,94 @@ import com.hippo.yorozuya.thread.InfiniteThreadExecutor;
 import com.hippo.yorozuya.thread.PriorityThreadFactory;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageTexture implements Texture, Animatable {
 
-    private static final int TILE_SMALLEST = 0;
-    private static final int TILE_LARGEST = 2;
+    static final int TILE_SMALLEST = 0;
+    static final int TILE_LARGEST = 2;
 
-    private static final int[] TILE_CONTENT_SIZE = {254, 508, 1016};
-    private static final int[] TILE_BORDER_SIZE = {1, 2, 4};
-    private static final int[] TILE_WHOLE_SIZE = {256, 512, 1024};
+    static final int[] TILE_CONTENT_SIZE = {254, 508, 1016};
+    static final int[] TILE_BORDER_SIZE = {1, 2, 4};
+    static final int[] TILE_WHOLE_SIZE = {256, 512, 1024};
     private static final Tile[] TILE_FREE_HEAD = {null, null, null};
 
     public static final int LARGEST_TILE_SIZE = TILE_WHOLE_SIZE[TILE_LARGEST];
 
     private static final Object sFreeTileLock = new Object();
 
+    // Large tiles are uploaded in strips of about this bytes, one strip for each upload
+    private static final int STRIP_BYTES = 512 * 1024;
+
+    // Results of uploadNextTile()
+    private static final int UPLOAD_DONE = 0;
+    private static final int UPLOAD_PROGRESS = 1;
+    // All tiles to upload are being staged
+    private static final int UPLOAD_WAIT = 2;
+    // No tile of the priority is left
+    private static final int UPLOAD_DEFERRED = 3;
+
+    // Tiles which uploadNextTile() picks
+    private static final int PRIORITY_VISIBLE = 0;
+    // Visible tiles, and tiles which the moving viewport will reach soon
+    private static final int PRIORITY_PREFETCH = 1;
+    private static final int PRIORITY_ANY = 2;
+
+    // Prefetch the area which the viewport will reach in about 6 frames
+    private static final float PREFETCH_TIME = 0.1f; // s
+
+    private static final int STAGE_NONE = 0;
+    private static final int STAGE_PENDING = 1;
+    private static final int STAGE_READY = 2;
+
+    // What pixels of a tile are like, known when the tile is staged
+    static final int CONTENT_UNKNOWN = 0;
+    static final int CONTENT_MIXED = 1;
+    static final int CONTENT_OPAQUE = 2;
+    static final int CONTENT_TRANSPARENT = 3;
+    // All pixels are in the same color, filled instead of uploaded
+    static final int CONTENT_SOLID = 4;
+
+    private static final int SEEK_NONE = 0;
+    private static final int SEEK_FRAME = 1;
+    private static final int SEEK_TIME = 2;
+
     private static final int INIT_CAPACITY = 8;
 
+    // Floats for each tile in mGeometry, source and target rectangles
+    static final int GEOMETRY_SIZE = 8;
+
+    // Levels of trimMemory(), each level releases what lower levels release too
+    // Pooled tiles, tile sets of recycled textures and staging buffers
+    public static final int TRIM_POOLS = 0;
+    // Texture memory of textures which are not drawn recently
+    public static final int TRIM_IDLE_TEXTURES = 1;
+    // Pauses animations which are not drawn recently
+    public static final int TRIM_IDLE_ANIMATIONS = 2;
+
     // We are targeting at 60fps, so we have 16ms for each frame.
     // In this 16ms, we use about 4~8 ms to upload tiles.
-    private static final long UPLOAD_TILE_LIMIT = 4; // ms
+    static final long UPLOAD_TILE_LIMIT = 4; // ms
+
+    // Pending tiles are not drawn while an uploader works on them, unless it is
+    // not called in this time, e.g. its GLRoot is gone
+    private static final long UPLOADER_STALL_TIME = 500; // ms
+
+    // Lost tiles are hidden for at most this draws if the uploader doesn't put any tile in
+    private static final int LOST_TILE_DRAWS = 2;
+
+    // While waiting for last frame to be drawn, check auto pause after this time
+    private static final long FRAME_WAIT_LIMIT = 1000; // ms
+
+    // Playback policy of all textures, multiplied by the policy of each texture
+    private static volatile float sPlaybackRate = 1.0f;
+    private static volatile float sMaxFrameRate = 0.0f;
 
     private static final Executor sThreadExecutor =
             new InfiniteThreadExecutor(10 * 1000, new LinkedList<Runnable>(),
@@ -66,8 +131,34 @@ public class ImageTexture implements Texture, Animatable {
                             Process.THREAD_PRIORITY_BACKGROUND));
     private static final PVLock sPVLock = new PVLock(3);
 
+    // Tile pixels are prepared in these threads, so GL thread only submits them
+    private static final Executor sStageExecutor =
+            new InfiniteThreadExecutor(10 * 1000, new LinkedList<Runnable>(),
+                    new PriorityThreadFactory("ImageTexture$StageTask",
+                            Process.THREAD_PRIORITY_BACKGROUND));
+    private static final PVLock sStagePVLock = new PVLock(2);
+    // Two largest tiles
+    private static final long STAGE_BUFFER_LIMIT = 2 * 4 * LARGEST_TILE_SIZE * LARGEST_TILE_SIZE;
+    private static final PixelBufferPool sStageBufferPool = new PixelBufferPool(STAGE_BUFFER_LIMIT);
+
+    // Tile sets of recycled textures, for new textures of the same size.
+    // The eldest first, guarded by itself.
+    private static final ArrayList<TileSet> sTileSets = new ArrayList<>();
+    private static final int TILE_SET_CACHE_SIZE = 4;
+
+    // Increased when GL context is lost, tiles of older generations are invalid
+    private static volatile int sContextGeneration;
+
+    // All textures not recycled, for trimMemory()
+    private static final WeakHashMap<ImageTexture, Boolean> sTextures = new WeakHashMap<>();
+
     private final ImageRenderer mImage;
-    private int mUploadIndex = 0;
+    // The image is subsampled by it, always a power of 2
+    private final int mSampleSize;
+    // The tile with pending strips, -1 for none
+    private int mUploadIndex = -1;
+    // The number of tiles which the uploader hasn't uploaded
+    private int mPendingTiles;
     private final Tile[] mTiles;  // Can be modified in different threads.
                                   // Should be protected by "synchronized."
 
@@ -77,18 +168,85 @@ public class ImageTexture implements Texture, Animatable {
     private final RectF mSrcRect = new RectF();
     private final RectF mDestRect = new RectF();
 
+    // Visible tiles in last draw, and their source and target rectangles
+    private final TileLayout mLayout;
+    private final int[] mVisibleTiles;
+    private int mVisibleTileCount;
+    private final float[] mGeometry;
+    // Arguments of last updateGeometry()
+    private final float[] mGeometryKey = new float[10];
+    private boolean mGeometryValid;
+
+    // Visible area of the canvas, null for whole canvas
+    private RectF mViewport;
+    // Velocity of the viewport in pixels per second
+    private float mVelocityX;
+    private float mVelocityY;
+    // Visible area of this texture in last draw
+    private final RectF mVisibleRect = new RectF();
+    // Visible area and the area the viewport is moving to
+    private final RectF mPrefetchRect = new RectF();
+
     private boolean mAnimating;
     private final AtomicBoolean mRunning = new AtomicBoolean();
     private final AtomicBoolean mReset = new AtomicBoolean();
     private Runnable mAnimateRunnable = null;
+    // Paused by trimMemory() or auto pause, until next draw
+    private final AtomicBoolean mSuspended = new AtomicBoolean();
+    private volatile long mLastDrawTime;
+    private final long mCreateTime;
+    // Pause the animation if not drawn in this time, 0 for never
+    private volatile long mAutoPauseTime;
+    // System.nanoTime() when the frame shown at pause was shown,
+    // -1 if not paused. Guarded by mLock.
+    private long mPausedFrameTime = -1L;
+    // The seek to do in animation thread, guarded by mLock
+    private int mSeekMode = SEEK_NONE;
+    private long mSeekTarget;
+    // Index of current frame, only touched between mLock.lock() and mLock.unlock()
+    private int mFrameIndex;
+    private volatile float mPlaybackRate = 1.0f;
+    // Max frames shown in a second, 0 for no limit
+    private volatile float mMaxFrameRate = 0.0f;
+
+    // The uploader which wants pixels of tiles staged, guarded by mLock
+    private Uploader mStageUploader;
+    private Runnable mStageRunnable = null;
 
     private final Lock mLock = new Lock();
     private boolean mNeedRecycle;
 
     private final AtomicBoolean mFrameDirty = new AtomicBoolean();
 
+    // The context generation of the tiles, only touched in render thread
+    private int mContextGeneration = sContextGeneration;
+    // The uploader which uploaded this texture last time, to upload again after context loss
+    private volatile Uploader mUploader;
+    // The uploader has tasks of this texture
+    private volatile boolean mUploading;
+    // Some tiles are lost and hidden until the uploader puts them in. Only touched in render thread.
+    private boolean mHasLostTiles;
+    // Draws since the uploader put in a tile last time
+    private int mLostTileDraws;
+
     private WeakReference<Callback> mCallback;
 
+    private final Callable<Boolean> mTryRecycle = new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+            if (mImage.isRecycled()) {
+                return true;
+            } else if (mNeedRecycle) {
+                mImage.recycle();
+                final ImageData imageData = mImage.getImageData();
+                if (!imageData.isReferenced()) imageData.recycle();
+                return true;
+            } else {
+                return false;
+            }
+        }
+    };
+
     private static class Lock {
 
         private boolean mLocked;
@@ -159,65 +317,274 @@ public class ImageTexture implements Texture, Animatable {
     }
 
     public static class Uploader implements GLRoot.OnGLIdleListener {
-        private final ArrayDeque<ImageTexture> mTextures =
-                new ArrayDeque<>(INIT_CAPACITY);
+        // Sorted by priority, the same priority in adding order
+        private final ArrayList<Task> mTasks = new ArrayList<>(INIT_CAPACITY);
+        // Tasks done in this onGLIdle(), to call listeners out of the lock
+        private final ArrayList<Task> mDoneTasks = new ArrayList<>(INIT_CAPACITY);
 
         private final GLRoot mGlRoot;
         private boolean mIsQueued = false;
+        // When it was called or got a task last time, to find out whether it is stalled
+        private volatile long mActiveTime;
 
         public Uploader(GLRoot glRoot) {
             mGlRoot = glRoot;
         }
 
         public synchronized void clear() {
-            mTextures.clear();
+            for (final Task task : mTasks) {
+                task.mCancelled = true;
+                task.mTexture.cancelStage();
+                task.mTexture.detachUploader(this);
+            }
+            ImageMetrics.UPLOAD_QUEUE_DEPTH.add(-mTasks.size());
+            mTasks.clear();
         }
 
         public synchronized void addTexture(ImageTexture t) {
             if (t.isReady()) return;
-            mTextures.addLast(t);
+            enqueue(new Task(this, t, 0, null));
+        }
+
+        /**
+         * Uploads all tiles of the texture before textures of lower priority.
+         * The listener is called in render thread when all tiles are uploaded,
+         * or at once if they are already uploaded.
+         *
+         * @param priority textures of higher priority are uploaded first,
+         *                 {@link #addTexture(ImageTexture)} uses 0
+         * @return the task to check or cancel
+         */
+        public Task prewarm(ImageTexture t, int priority, OnReadyListener listener) {
+            final Task task = new Task(this, t, priority, listener);
+            synchronized (this) {
+                if (!t.isReady()) {
+                    enqueue(task);
+                    return task;
+                }
+                task.mDone = true;
+            }
+            if (listener != null) {
+                listener.onReady(t);
+            }
+            return task;
+        }
+
+        // Guarded by this
+        private void enqueue(Task task) {
+            int index = mTasks.size();
+            while (index > 0 && mTasks.get(index - 1).mPriority < task.mPriority) {
+                index--;
+            }
+            mTasks.add(index, task);
+            ImageMetrics.UPLOAD_QUEUE_DEPTH.add(1);
+            task.mTexture.mUploader = this;
+            task.mTexture.mUploading = true;
+            mActiveTime = SystemClock.uptimeMillis();
+            task.mTexture.requestStage(this);
 
             if (mIsQueued) return;
             mIsQueued = true;
             mGlRoot.addOnGLIdleListener(this);
         }
 
+        private synchronized void cancel(Task task) {
+            if (task.mDone || task.mCancelled) return;
+            task.mCancelled = true;
+            mTasks.remove(task);
+            ImageMetrics.UPLOAD_QUEUE_DEPTH.add(-1);
+            for (final Task t : mTasks) {
+                if (t.mTexture == task.mTexture) return;
+            }
+            task.mTexture.cancelStage();
+            task.mTexture.detachUploader(this);
+        }
+
+        // Cancels all tasks of the texture, its tiles may be given to another texture
+        private synchronized void remove(ImageTexture texture) {
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                final Task task = mTasks.get(i);
+                if (task.mTexture == texture) {
+                    task.mCancelled = true;
+                    mTasks.remove(i);
+                    ImageMetrics.UPLOAD_QUEUE_DEPTH.add(-1);
+                }
+            }
+            texture.cancelStage();
+            texture.detachUploader(this);
+        }
+
+        // Called when the pixels of a tile are staged
+        private synchronized void wake() {
+            if (mIsQueued || mTasks.isEmpty()) return;
+            mIsQueued = true;
+            mGlRoot.addOnGLIdleListener(this);
+        }
+
         @Override
         public boolean onGLIdle(GLCanvas canvas, boolean renderRequested) {
-            final ArrayDeque<ImageTexture> deque = mTextures;
+            mActiveTime = SystemClock.uptimeMillis();
+            final ArrayList<Task> doneTasks = mDoneTasks;
+            final boolean keep;
+            final long startTime = System.nanoTime();
+            final long startBytes = ImageMetrics.BYTES_UPLOADED.get();
             synchronized (this) {
                 long now = SystemClock.uptimeMillis();
                 final long dueTime = now + UPLOAD_TILE_LIMIT;
-                while (now < dueTime && !deque.isEmpty()) {
-                    final ImageTexture t = deque.peekFirst();
-                    if (t.uploadNextTile(canvas)) {
-                        deque.removeFirst();
-                        mGlRoot.requestRender();
+                boolean waiting = false;
+                while (now < dueTime && !mTasks.isEmpty()) {
+                    if (!uploadNextTile(canvas)) {
+                        waiting = true;
+                        break;
                     }
                     now = SystemClock.uptimeMillis();
                 }
-                mIsQueued = !mTextures.isEmpty();
+                // Don't spin while all textures are staging, wake() will queue it again
+                mIsQueued = !mTasks.isEmpty() && !waiting;
+                keep = mIsQueued;
+            }
+
+            final long time = (System.nanoTime() - startTime) / 1000;
+            ImageMetrics.UPLOAD_IDLE_TIME_US.record(time);
+            ImageMetrics.BYTES_UPLOADED_PER_IDLE.record(ImageMetrics.BYTES_UPLOADED.get() - startBytes);
+            if (time > UPLOAD_TILE_LIMIT * 1000) {
+                ImageMetrics.UPLOAD_OVER_BUDGET.add(1);
+            }
+
+            for (int i = 0, n = doneTasks.size(); i < n; i++) {
+                final Task task = doneTasks.get(i);
+                task.mListener.onReady(task.mTexture);
+            }
+            doneTasks.clear();
+
+            // return true to keep this listener in the queue
+            return keep;
+        }
+
+        // Uploads a tile of the first texture which can upload now.
+        // Visible tiles of all textures go first, then prefetched tiles.
+        // Returns false if all textures are waiting for staging.
+        private boolean uploadNextTile(GLCanvas canvas) {
+            final ArrayList<Task> tasks = mTasks;
+            for (int priority = PRIORITY_VISIBLE; priority <= PRIORITY_ANY; priority++) {
+                for (int i = 0, n = tasks.size(); i < n; i++) {
+                    final ImageTexture t = tasks.get(i).mTexture;
+                    final int result = t.uploadNextTile(canvas, priority);
+                    if (result == UPLOAD_DONE) {
+                        finish(t);
+                        mGlRoot.requestRender();
+                        return true;
+                    } else if (result == UPLOAD_PROGRESS) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Guarded by this
+        private void finish(ImageTexture t) {
+            t.mUploading = false;
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                final Task task = mTasks.get(i);
+                if (task.mTexture == t) {
+                    mTasks.remove(i);
+                    ImageMetrics.UPLOAD_QUEUE_DEPTH.add(-1);
+                    task.mDone = true;
+                    if (task.mListener != null) {
+                        mDoneTasks.add(task);
+                    }
+                }
+            }
+        }
+
+        public static final class Task {
+
+            private final Uploader mUploader;
+            private final ImageTexture mTexture;
+            private final int mPriority;
+            private final OnReadyListener mListener;
+            // Guarded by mUploader
+            private boolean mDone;
+            private boolean mCancelled;
+
+            private Task(Uploader uploader, ImageTexture texture, int priority,
+                    OnReadyListener listener) {
+                mUploader = uploader;
+                mTexture = texture;
+                mPriority = priority;
+                mListener = listener;
+            }
+
+            public ImageTexture getTexture() {
+                return mTexture;
+            }
 
-                // return true to keep this listener in the queue
-                return mIsQueued;
+            public boolean isDone() {
+                synchronized (mUploader) {
+                    return mDone;
+                }
             }
+
+            public boolean isCancelled() {
+                synchronized (mUploader) {
+                    return mCancelled;
+                }
+            }
+
+            /**
+             * Stops uploading for this task. The listener will not be called.
+             */
+            public void cancel() {
+                mUploader.cancel(this);
+            }
+        }
+
+        public interface OnReadyListener {
+            void onReady(ImageTexture texture);
         }
     }
 
-    private static class Tile extends NativeTexture {
+    static class Tile extends NativeTexture {
 
-        private int tileSize;
-        private int borderSize;
+        int tileSize;
+        int borderSize;
         // Width of the area in image which this tile represent for
-        private int width;
+        int width;
         // Height of the area in image which this tile represent for
-        private int height;
+        int height;
         // Offset x of the area in image which this tile represent for
         public int offsetX;
         // Offset y of the area in image which this tile represent for
         public int offsetY;
         public ImageRenderer image;
+        // The image is subsampled by it, the area above is in the subsampled image
+        int sampleSize = 1;
         public Tile nextFreeTile;
+        // Whether the uploader should upload it
+        public boolean uploadPending;
+        // The frame in which it was drawn last time, for the users to track
+        public int drawFrame;
+
+        // Staged pixels are uploaded instead of reading from image.
+        // Guarded by this tile.
+        private int stageState = STAGE_NONE;
+        private int stageGeneration;
+        private ByteBuffer stagedPixels;
+        volatile int content = CONTENT_UNKNOWN;
+        // The color of a solid tile, in ARGB
+        int solidColor;
+
+        // Rows uploaded, 0 if no strip is pending. Only touched in render thread.
+        private int uploadedRows;
+        private boolean uploadingStrip;
+        private ByteBuffer stripPixels;
+        // Uploaded in next texImage(), but not owned by this tile
+        private ByteBuffer borrowedPixels;
+        // Texture is lost with GL context, the uploader will upload it
+        boolean lost;
+        // The whole content is in the texture, no need to stage it
+        private volatile boolean uploaded;
 
         public void setSize(int tileSize, int width, int height, int offsetX, int offsetY) {
             this.tileSize = tileSize;
@@ -234,22 +601,255 @@ public class ImageTexture implements Texture, Animatable {
 
         @Override
         protected void texImage(boolean init) {
-            if (image != null && !image.isRecycled()) {
-                final int w, h;
+            final long traceStart = ImageTrace.begin();
+            if (init) {
+                releaseStripPixels();
+            }
+            if (content == CONTENT_OPAQUE) {
+                // No blending for it even if the image has alpha
+                setOpaque(true);
+            }
+
+            ByteBuffer pixels = borrowedPixels;
+            final boolean borrowed = pixels != null;
+            borrowedPixels = null;
+            if (!borrowed) {
+                pixels = stripPixels;
+                if (pixels == null) {
+                    pixels = takeStagedPixels();
+                }
+            }
+
+            final int begin = uploadedRows;
+            final int end = uploadingStrip && !borrowed ?
+                    Math.min(begin + STRIP_BYTES / (4 * mTextureWidth), mHeight) : mHeight;
+
+            if (pixels != null) {
+                // Rows of the buffer are always as wide as the texture
                 if (init) {
-                    w = mTextureWidth;
-                    h = mTextureHeight;
+                    allocTexImage();
+                }
+                pixels.position(4 * mTextureWidth * begin);
+                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, begin, mTextureWidth, end - begin,
+                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+            } else if (image != null && !image.isRecycled()) {
+                // Staged pixels are useless now, don't keep the buffer
+                cancelStage();
+                if (init && end == mHeight) {
+                    final int w = mTextureWidth;
+                    final int h = mTextureHeight;
+                    final int s = sampleSize;
+                    image.glTex(true, w, h, 0, 0, (offsetX - borderSize) * s,
+                            (offsetY - borderSize) * s, w * s, h * s, s);
                 } else {
-                    w = mWidth;
-                    h = mHeight;
+                    if (init) {
+                        allocTexImage();
+                    }
+                    final int w = mWidth;
+                    final int h = end - begin;
+                    final int s = sampleSize;
+                    image.glTex(false, w, h, 0, begin, (offsetX - borderSize) * s,
+                            (offsetY - borderSize + begin) * s, w * s, h * s, s);
+                }
+            }
+
+            if (pixels != null || (image != null && !image.isRecycled())) {
+                ImageMetrics.BYTES_UPLOADED.add(4L * mTextureWidth * (end - begin));
+                if (end == mHeight) {
+                    ImageMetrics.TILES_UPLOADED.add(1);
                 }
-                image.glTex(init, w, h, 0, 0, offsetX - borderSize, offsetY - borderSize, w, h, 1);
             }
+
+            if (end < mHeight) {
+                uploadedRows = end;
+                stripPixels = pixels;
+            } else {
+                uploadedRows = 0;
+                stripPixels = borrowed ? null : pixels;
+                releaseStripPixels();
+                lost = false;
+                uploaded = true;
+                cancelStage();
+            }
+            ImageTrace.end(ImageTrace.UPLOAD, traceStart, ImageTrace.textureId(image), tileSize);
         }
 
-        private void invalidate() {
+        // The pixels are uploaded in next updateContent(), in the layout of staged pixels.
+        // The caller must keep them unchanged until then.
+        public void setBorrowedPixels(ByteBuffer pixels) {
+            releaseStripPixels();
+            borrowedPixels = pixels;
             invalidateContent();
+        }
+
+        private void allocTexImage() {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
+                    mTextureWidth, mTextureHeight, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+
+        private void releaseStripPixels() {
+            uploadedRows = 0;
+            if (stripPixels != null) {
+                sStageBufferPool.release(stripPixels);
+                stripPixels = null;
+            }
+        }
+
+        public boolean isStripPending() {
+            return uploadedRows != 0;
+        }
+
+        // Uploads next strip of this tile, returns true if the whole tile is uploaded
+        public boolean uploadStrip(GLCanvas canvas) {
+            uploadingStrip = true;
+            updateContent(canvas);
+            uploadingStrip = false;
+            if (uploadedRows != 0) {
+                // Make next updateContent() go on with remaining strips
+                invalidateContent();
+                return false;
+            }
+            return true;
+        }
+
+        // The frame is changed, all rows must be uploaded again
+        public void invalidateFrame() {
+            uploaded = false;
+            releaseStripPixels();
+            invalidateContent();
+        }
+
+        private synchronized ByteBuffer takeStagedPixels() {
+            if (stageState != STAGE_READY) return null;
+            final ByteBuffer staged = stagedPixels;
+            stagedPixels = null;
+            stageState = STAGE_NONE;
+            return staged;
+        }
+
+        public synchronized boolean isStaging() {
+            return stageState == STAGE_PENDING;
+        }
+
+        public boolean isTransparent() {
+            return content == CONTENT_TRANSPARENT;
+        }
+
+        public boolean isSolid() {
+            return content == CONTENT_SOLID;
+        }
+
+        // Transparent and solid tiles are not uploaded
+        public boolean needsTexture() {
+            final int c = content;
+            return c != CONTENT_TRANSPARENT && c != CONTENT_SOLID;
+        }
+
+        // Finds out what the pixels in RGBA are like, the rows are as wide as the texture
+        // Only texels in the image count, borders out of the image are always transparent.
+        public int classify(ByteBuffer pixels, int imageWidth, int imageHeight) {
+            final int stride = 4 * mTextureWidth;
+            final int left = imageLeft();
+            final int top = imageTop();
+            final int right = Math.min(mWidth, imageWidth - offsetX + borderSize);
+            final int bottom = Math.min(mHeight, imageHeight - offsetY + borderSize);
+            if (left >= right || top >= bottom) {
+                return CONTENT_TRANSPARENT;
+            }
+            final int first = pixels.getInt(stride * top + 4 * left);
+            boolean solid = true;
+            boolean opaque = true;
+            boolean transparent = true;
+            for (int y = top; y < bottom && (solid || opaque || transparent); y++) {
+                for (int x = left, i = stride * y + 4 * left; x < right; x++, i += 4) {
+                    // Bytes are R, G, B, A whatever the byte order of the buffer is
+                    final int alpha = pixels.get(i + 3) & 0xff;
+                    solid &= pixels.getInt(i) == first;
+                    opaque &= alpha == 0xff;
+                    transparent &= alpha == 0;
+                    if (!solid && !opaque && !transparent) {
+                        break;
+                    }
+                }
+            }
+            if (transparent) {
+                return CONTENT_TRANSPARENT;
+            } else if (solid) {
+                return CONTENT_SOLID;
+            } else {
+                return opaque ? CONTENT_OPAQUE : CONTENT_MIXED;
+            }
+        }
+
+        // The left of the texels in the image, the border out of the image is skipped
+        private int imageLeft() {
+            return Math.max(0, borderSize - offsetX);
+        }
+
+        private int imageTop() {
+            return Math.max(0, borderSize - offsetY);
+        }
+
+        // Index of the first texel in the image, the color of a solid tile
+        int firstImageTexel() {
+            return 4 * mTextureWidth * imageTop() + 4 * imageLeft();
+        }
+
+        // Premultiplied R, G, B, A bytes at the index to ARGB
+        private static int toColor(ByteBuffer pixels, int index) {
+            final int a = pixels.get(index + 3) & 0xff;
+            if (a == 0) {
+                return Color.TRANSPARENT;
+            }
+            final int r = Math.min((pixels.get(index) & 0xff) * 0xff / a, 0xff);
+            final int g = Math.min((pixels.get(index + 1) & 0xff) * 0xff / a, 0xff);
+            final int b = Math.min((pixels.get(index + 2) & 0xff) * 0xff / a, 0xff);
+            return Color.argb(a, r, g, b);
+        }
+
+        public synchronized void markStagePending() {
+            if (stageState == STAGE_NONE && image != null && !uploaded && needsTexture()) {
+                stageState = STAGE_PENDING;
+            }
+        }
+
+        // Returns the generation to publish pixels with, -1 if no pixels wanted
+        public synchronized int getStageGeneration(ImageRenderer owner) {
+            return stageState == STAGE_PENDING && image == owner && !uploaded ?
+                    stageGeneration : -1;
+        }
+
+        public synchronized boolean publishStagedPixels(int generation, ByteBuffer pixels,
+                int content) {
+            if (stageState != STAGE_PENDING || stageGeneration != generation) return false;
+            if (content == CONTENT_SOLID) {
+                solidColor = toColor(pixels, firstImageTexel());
+            }
+            this.content = content;
+            pixels.position(0);
+            stagedPixels = pixels;
+            stageState = STAGE_READY;
+            return true;
+        }
+
+        public synchronized void cancelStage() {
+            if (stagedPixels != null) {
+                sStageBufferPool.release(stagedPixels);
+                stagedPixels = null;
+            }
+            stageState = STAGE_NONE;
+            stageGeneration++;
+        }
+
+        private void invalidate() {
+            cancelStage();
+            content = CONTENT_UNKNOWN;
+            borrowedPixels = null;
+            lost = false;
+            invalidateFrame();
             image = null;
+            uploadPending = false;
         }
 
         public void free() {
@@ -261,12 +861,14 @@ public class ImageTexture implements Texture, Animatable {
         }
     }
 
-    private static Tile obtainTile(int tileSize) {
+    static Tile obtainTile(int tileSize) {
         synchronized (sFreeTileLock) {
             final Tile result = TILE_FREE_HEAD[tileSize];
             if (result == null) {
+                ImageMetrics.TILE_POOL_MISSES.add(1);
                 return new Tile();
             } else {
+                ImageMetrics.TILE_POOL_HITS.add(1);
                 TILE_FREE_HEAD[tileSize] = result.nextFreeTile;
                 result.nextFreeTile = null;
             }
@@ -276,41 +878,38 @@ public class ImageTexture implements Texture, Animatable {
 
     private class AnimateRunnable implements Runnable {
 
-        private final Callable<Boolean> mTryRecycle = new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws Exception {
-                if (mImage.isRecycled()) {
-                    return true;
-                } else if (mNeedRecycle) {
-                    mImage.recycle();
-                    final ImageData imageData = mImage.getImageData();
-                    if (!imageData.isReferenced()) imageData.recycle();
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-        };
-
         @Override
         public void run() {
             final ImageData imageData = mImage.getImageData();
-            long lastTime = System.nanoTime();
-            long lastDelay = -1L;
+            // When current frame should have been shown, in System.nanoTime(), -1 for none
+            long frameTime = -1L;
+            // When a frame was shown last time, -1 for none
+            long shownTime = -1L;
             boolean recycled = false;
 
             if (!imageData.isCompleted()) {
+                long traceStart = ImageTrace.begin();
                 sPVLock.p();
+                ImageTrace.end(ImageTrace.LOCK_WAIT, traceStart, ImageTrace.textureId(mImage), -1);
 
                 recycled = mLock.lock(mTryRecycle);
                 if (!recycled) {
+                    traceStart = ImageTrace.begin();
                     synchronized (imageData) {
                         imageData.complete();
                     }
+                    ImageTrace.end(ImageTrace.DECODE, traceStart, ImageTrace.textureId(mImage), -1);
+                    ImageMetrics.FIRST_DECODE_LATENCY_MS.record(
+                            SystemClock.uptimeMillis() - mCreateTime);
                 }
                 recycled = mLock.unlock(mTryRecycle);
 
                 sPVLock.v();
+
+                if (!recycled) {
+                    // Staging waits for decoding
+                    startStage();
+                }
             }
 
             if (recycled || imageData.getFrameCount() == 1) {
@@ -320,21 +919,76 @@ public class ImageTexture implements Texture, Animatable {
 
             for (;;) {
                 synchronized (mLock) {
-                    if (!mAnimating) {
+                    final long autoPauseTime = mAutoPauseTime;
+                    if (autoPauseTime > 0 &&
+                            SystemClock.uptimeMillis() - mLastDrawTime > autoPauseTime) {
+                        mSuspended.set(true);
+                    }
+                    if (!mAnimating || mSuspended.get()) {
+                        if (mAnimating) {
+                            // Keep the timeline for next draw
+                            mPausedFrameTime = frameTime;
+                        }
                         mAnimateRunnable = null;
                         mRunning.lazySet(false);
+                        if (mSeekMode != SEEK_NONE) {
+                            // Nobody else takes it
+                            sThreadExecutor.execute(new SeekRunnable());
+                        }
                         return;
                     }
+                    if (-1L != mPausedFrameTime) {
+                        frameTime = mPausedFrameTime;
+                        mPausedFrameTime = -1L;
+                    }
                 }
                 mRunning.lazySet(true);
 
+                if (-1L != shownTime && mFrameDirty.get()) {
+                    // Render thread is behind, don't decode frames which are never shown.
+                    // Skip to the frame which is due when it catches up.
+                    synchronized (mFrameDirty) {
+                        if (mFrameDirty.get()) {
+                            try {
+                                mFrameDirty.wait(FRAME_WAIT_LIMIT);
+                            } catch (InterruptedException e) {
+                                // Ignore
+                            }
+                        }
+                    }
+                    continue;
+                }
+
+                final int seekMode;
+                final long seekTarget;
+                synchronized (mLock) {
+                    seekMode = mSeekMode;
+                    seekTarget = mSeekTarget;
+                    mSeekMode = SEEK_NONE;
+                }
+
+                final float rate = getPlaybackRate();
+                final long now = System.nanoTime();
+                // Time left for current frame, in the time of the animation
+                long delay = 0L;
+                boolean frameChanged = false;
                 recycled = mLock.lock(mTryRecycle);
                 if (!recycled) {
+                    final int lastFrameIndex = mFrameIndex;
                     if (mReset.getAndSet(false)) {
-                        mImage.reset();
+                        resetFrame();
+                        delay = mImage.getCurrentDelay();
+                    } else if (seekMode != SEEK_NONE) {
+                        delay = seek(seekMode, seekTarget);
+                    } else if (-1L == frameTime) {
+                        advanceFrame();
+                        delay = mImage.getCurrentDelay();
                     } else {
-                        mImage.advance();
+                        // Frames which are due are skipped, but still composed
+                        delay = catchUp((long) ((now - frameTime) / 1000000 * rate));
                     }
+                    frameTime = now - (long) ((mImage.getCurrentDelay() - delay) * 1000000 / rate);
+                    frameChanged = mFrameIndex != lastFrameIndex;
                 }
                 recycled = mLock.unlock(mTryRecycle);
 
@@ -344,46 +998,258 @@ public class ImageTexture implements Texture, Animatable {
                     return;
                 }
 
-                // Get delay
-                long delay = mImage.getCurrentDelay();
-                final long now = System.nanoTime();
-                // Fix delay
-                if (-1L != lastDelay) {
-                    delay -= (now - lastTime) / 1000000 - lastDelay;
+                if (frameChanged || -1L == shownTime) {
+                    shownTime = now;
+                    mFrameDirty.lazySet(true);
+                    invalidateSelf();
+                }
+
+                long sleep = (long) (delay / rate);
+                final float maxFrameRate = getMaxFrameRate();
+                if (maxFrameRate > 0) {
+                    // Decimate frames, next frame is shown after the interval
+                    final long interval = (long) (1000 / maxFrameRate);
+                    sleep = Math.max(sleep, interval - (now - shownTime) / 1000000);
                 }
-                lastTime = now;
-                lastDelay = delay;
-                mFrameDirty.lazySet(true);
-                invalidateSelf();
 
                 // Delay
-                if (delay > 0) {
+                if (sleep > 0) {
                     try {
-                        Thread.sleep(delay);
+                        Thread.sleep(sleep);
                     } catch (InterruptedException e) {
                         // Ignore
                     }
+                    ImageMetrics.FRAME_DRIFT_MS.record((System.nanoTime() - now) / 1000000 - sleep);
+                }
+            }
+        }
+    }
+
+    // Advances the frames which should have been shown in the elapsed time
+    // since current frame was shown. Returns the time left for the new frame.
+    private long catchUp(long elapsed) {
+        final int frameCount = mImage.getImageData().getFrameCount();
+        long loopTime = 0;
+        int frames = 0;
+        long delay = mImage.getCurrentDelay();
+        while (elapsed >= delay) {
+            elapsed -= delay;
+            loopTime += delay;
+            advanceFrame();
+            delay = mImage.getCurrentDelay();
+
+            if (++frames == frameCount) {
+                if (loopTime <= 0) {
+                    // No delay at all
+                    return 0;
+                }
+                // Skip whole loops
+                elapsed %= loopTime;
+                loopTime = 0;
+                frames = 0;
+            }
+        }
+        return delay - elapsed;
+    }
+
+    private void advanceFrame() {
+        mImage.advance();
+        mFrameIndex = (mFrameIndex + 1) % mImage.getImageData().getFrameCount();
+    }
+
+    private void resetFrame() {
+        mImage.reset();
+        mFrameIndex = 0;
+    }
+
+    // Frames can only be composed one by one from the first frame.
+    // Seeking forward goes on from current frame, seeking backward starts over.
+    // Returns the time left for the new frame.
+    private long seek(int mode, long target) {
+        if (mode == SEEK_TIME) {
+            resetFrame();
+            return catchUp(target);
+        }
+
+        final int index = (int) (target % mImage.getImageData().getFrameCount());
+        if (index < mFrameIndex) {
+            resetFrame();
+        }
+        while (mFrameIndex < index) {
+            advanceFrame();
+        }
+        return mImage.getCurrentDelay();
+    }
+
+    // Seeks while no animation thread is running
+    private class SeekRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            final int seekMode;
+            final long seekTarget;
+            synchronized (mLock) {
+                seekMode = mSeekMode;
+                seekTarget = mSeekTarget;
+                mSeekMode = SEEK_NONE;
+                // Resume from the new frame
+                mPausedFrameTime = -1L;
+            }
+            if (seekMode == SEEK_NONE) {
+                return;
+            }
+
+            boolean recycled = mLock.lock(mTryRecycle);
+            if (!recycled) {
+                seek(seekMode, seekTarget);
+            }
+            recycled = mLock.unlock(mTryRecycle);
+
+            if (!recycled) {
+                mFrameDirty.lazySet(true);
+                invalidateSelf();
+            }
+        }
+    }
+
+    private class StageRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            final Bitmap[] bitmaps = new Bitmap[TILE_LARGEST + 1];
+            boolean recycled = false;
+
+            while (!recycled) {
+                final Tile tile = findStageTile();
+                if (tile == null) {
+                    break;
+                }
+
+                final int size = TILE_WHOLE_SIZE[tile.tileSize];
+                final ByteBuffer pixels = sStageBufferPool.acquire(4 * size * size);
+                // Buffer might be acquired after a long time, check again
+                final int generation = tile.getStageGeneration(mImage);
+                boolean staged = false;
+
+                if (generation >= 0) {
+                    long traceStart = ImageTrace.begin();
+                    sStagePVLock.p();
+                    ImageTrace.end(ImageTrace.LOCK_WAIT, traceStart, ImageTrace.textureId(mImage), -1);
+                    recycled = mLock.lock(mTryRecycle);
+                    if (!recycled) {
+                        traceStart = ImageTrace.begin();
+                        Bitmap bitmap = bitmaps[tile.tileSize];
+                        if (bitmap == null) {
+                            bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+                            bitmaps[tile.tileSize] = bitmap;
+                        }
+                        final int s = tile.sampleSize;
+                        mImage.render(bitmap, 0, 0, (tile.offsetX - tile.borderSize) * s,
+                                (tile.offsetY - tile.borderSize) * s,
+                                tile.getWidth() * s, tile.getHeight() * s,
+                                s, true, Color.TRANSPARENT);
+                        bitmap.copyPixelsToBuffer(pixels);
+                        staged = true;
+                        ImageTrace.end(ImageTrace.STAGE, traceStart, ImageTrace.textureId(mImage),
+                                tile.tileSize);
+                    }
+                    recycled = mLock.unlock(mTryRecycle);
+                    sStagePVLock.v();
                 }
+
+                if (staged && tile.publishStagedPixels(generation, pixels,
+                        tile.classify(pixels, mWidth, mHeight))) {
+                    wakeStageUploader();
+                } else {
+                    sStageBufferPool.release(pixels);
+                }
+            }
+
+            for (final Bitmap bitmap : bitmaps) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+            }
+
+            final Uploader uploader;
+            synchronized (mLock) {
+                uploader = mStageUploader;
+                mStageRunnable = null;
+                mStageUploader = null;
+            }
+            if (recycled) {
+                cancelStage();
+            } else if (uploader != null) {
+                // Let the uploader go on with tiles which are not staged
+                uploader.wake();
             }
         }
     }
 
     public ImageTexture(@NonNull ImageData image) {
+        this(image, TileLayout.getDefault());
+    }
+
+    public ImageTexture(@NonNull ImageData image, @NonNull TileLayout layout) {
+        this(image, 0, 0, layout);
+    }
+
+    /**
+     * Creates a texture subsampled for a display size, so it has fewer tiles
+     * to upload. The size of this texture is the subsampled size, which is
+     * not smaller than the target size unless the image is.
+     *
+     * @param targetWidth the width to display, 0 for the image width
+     * @param targetHeight the height to display, 0 for the image height
+     */
+    public ImageTexture(@NonNull ImageData image, int targetWidth, int targetHeight) {
+        this(image, targetWidth, targetHeight, TileLayout.getDefault());
+    }
+
+    public ImageTexture(@NonNull ImageData image, int targetWidth, int targetHeight,
+            @NonNull TileLayout layout) {
         mImage = image.createImageRenderer();
-        mWidth = image.getWidth();
-        mHeight = image.getHeight();
+        mSampleSize = getSampleSize(image.getWidth(), image.getHeight(), targetWidth, targetHeight);
+        mWidth = image.getWidth() / mSampleSize;
+        mHeight = image.getHeight() / mSampleSize;
         mOpaque = image.isOpaque();
-        final ArrayList<Tile> list = new ArrayList<>();
-        layoutTiles(list, mImage, mOpaque, mWidth, mHeight, 0, 0, TILE_LARGEST);
-        mTiles = list.toArray(new Tile[list.size()]);
+        mLayout = layout;
+        final TileSet tileSet = obtainTileSet(mWidth, mHeight, layout);
+        if (tileSet != null) {
+            // Texture memory of the tiles is reused, only sub images are uploaded
+            mTiles = tileSet.tiles;
+            mVisibleTiles = tileSet.visibleTiles;
+            mGeometry = tileSet.geometry;
+            for (final Tile tile : mTiles) {
+                tile.image = mImage;
+                tile.uploadPending = true;
+                tile.setOpaque(mOpaque);
+            }
+        } else {
+            final ArrayList<Tile> list = new ArrayList<>();
+            layout.layout(list, mImage, mOpaque, mWidth, mHeight);
+            mTiles = list.toArray(new Tile[list.size()]);
+            mVisibleTiles = new int[mTiles.length];
+            mGeometry = new float[GEOMETRY_SIZE * mTiles.length];
+        }
+        for (final Tile tile : mTiles) {
+            tile.sampleSize = mSampleSize;
+        }
+        mPendingTiles = mTiles.length;
+        mCreateTime = SystemClock.uptimeMillis();
+        mLastDrawTime = mCreateTime;
 
         if (!image.isCompleted()) {
             mAnimateRunnable = new AnimateRunnable();
             sThreadExecutor.execute(mAnimateRunnable);
         }
+
+        synchronized (sTextures) {
+            sTextures.put(this, Boolean.TRUE);
+        }
     }
 
-    private void layoutTiles(ArrayList<Tile> list, ImageRenderer image, boolean opaque,
+    static void layoutTiles(ArrayList<Tile> list, ImageRenderer image, boolean opaque,
             int width, int height, int offsetX, int offsetY, int tileSize) {
         final int tileContentSize = TILE_CONTENT_SIZE[tileSize];
         final int nextTileContentSize = tileSize == TILE_SMALLEST ? 0 : TILE_CONTENT_SIZE[tileSize - 1];
@@ -416,6 +1282,7 @@ public class ImageTexture implements Texture, Animatable {
 
                 final Tile tile = obtainTile(tileSize);
                 tile.image = image;
+                tile.uploadPending = true;
                 tile.setSize(tileSize, lineWidth, lineHeight, lineOffsetX, lineOffsetY);
                 tile.setOpaque(opaque);
                 list.add(tile);
@@ -445,28 +1312,138 @@ public class ImageTexture implements Texture, Animatable {
         mReset.lazySet(true);
     }
 
+    /**
+     * Shows the frame of the index, in animation thread. The animation
+     * goes on from it if running.
+     *
+     * @param index the index of the frame, it is wrapped by the frame count
+     */
+    public void seekToFrame(int index) {
+        requestSeek(SEEK_FRAME, Math.max(index, 0));
+    }
+
+    /**
+     * Shows the frame which is shown at the time after the first frame
+     * is shown, in animation thread. The animation goes on from it if running.
+     *
+     * @param time in milliseconds, it is wrapped by the duration of a loop
+     */
+    public void seekToTime(long time) {
+        requestSeek(SEEK_TIME, Math.max(time, 0L));
+    }
+
+    /**
+     * Sets the speed of the animation, 1 for normal speed.
+     */
+    public void setPlaybackRate(float rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Invalid playback rate: " + rate);
+        }
+        mPlaybackRate = rate;
+    }
+
+    /**
+     * Sets the max frames shown in a second, 0 for no limit.
+     * Frames which would be shown too early are skipped.
+     */
+    public void setMaxFrameRate(float fps) {
+        if (!(fps >= 0)) {
+            throw new IllegalArgumentException("Invalid frame rate: " + fps);
+        }
+        mMaxFrameRate = fps;
+    }
+
+    /**
+     * Sets the speed of all animations, multiplied by the rate of each texture.
+     */
+    public static void setGlobalPlaybackRate(float rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Invalid playback rate: " + rate);
+        }
+        sPlaybackRate = rate;
+    }
+
+    /**
+     * Sets the max frames shown in a second for all animations, 0 for no limit.
+     * The lower limit of it and the limit of each texture is used.
+     */
+    public static void setGlobalMaxFrameRate(float fps) {
+        if (!(fps >= 0)) {
+            throw new IllegalArgumentException("Invalid frame rate: " + fps);
+        }
+        sMaxFrameRate = fps;
+    }
+
+    private float getPlaybackRate() {
+        return mPlaybackRate * sPlaybackRate;
+    }
+
+    private float getMaxFrameRate() {
+        final float fps = mMaxFrameRate;
+        final float globalFps = sMaxFrameRate;
+        if (fps == 0) {
+            return globalFps;
+        } else if (globalFps == 0) {
+            return fps;
+        } else {
+            return Math.min(fps, globalFps);
+        }
+    }
+
+    private void requestSeek(int mode, long target) {
+        final boolean startSeekRunnable;
+        synchronized (mLock) {
+            mSeekMode = mode;
+            mSeekTarget = target;
+            // Animation thread takes it if running
+            startSeekRunnable = mAnimateRunnable == null;
+        }
+        if (startSeekRunnable) {
+            sThreadExecutor.execute(new SeekRunnable());
+        }
+    }
+
     @Override
     public void start() {
+        synchronized (mLock) {
+            mAnimating = true;
+        }
+        startAnimateRunnable();
+    }
+
+    // A suspended animation is started in next draw
+    private void startAnimateRunnable() {
         final ImageData imageData = mImage.getImageData();
-        final boolean startAnimateRunnable;
+        final Runnable runnable;
 
         synchronized (mLock) {
-            mAnimating = true;
-            startAnimateRunnable = !(mNeedRecycle || mImage.isRecycled() ||
+            if (!mAnimating || mSuspended.get() ||
+                    mNeedRecycle || mImage.isRecycled() ||
                     (imageData.isCompleted() && imageData.getFrameCount() == 1) ||
-                    mAnimateRunnable != null);
+                    mAnimateRunnable != null) {
+                return;
+            }
+            // Set with mLock, the animation thread clears it with mLock when it exits
+            runnable = new AnimateRunnable();
+            mAnimateRunnable = runnable;
         }
 
-        if (startAnimateRunnable) {
-            mAnimateRunnable = new AnimateRunnable();
-            sThreadExecutor.execute(mAnimateRunnable);
-        }
+        sThreadExecutor.execute(runnable);
     }
 
     @Override
     public void stop() {
         synchronized (mLock) {
             mAnimating = false;
+            mPausedFrameTime = -1L;
+        }
+        notifyFrameDrawn();
+    }
+
+    // Wakes the animation thread waiting for last frame to be drawn
+    private void notifyFrameDrawn() {
+        synchronized (mFrameDirty) {
+            mFrameDirty.notifyAll();
         }
     }
 
@@ -475,17 +1452,144 @@ public class ImageTexture implements Texture, Animatable {
         return mRunning.get();
     }
 
-    private boolean uploadNextTile(GLCanvas canvas) {
-        if (mUploadIndex == mTiles.length) return true;
+    /**
+     * Pauses the animation if this texture is not drawn in the time,
+     * e.g. it is scrolled out of the screen. It goes on in next draw,
+     * skipping the frames which should have been shown during the pause.
+     *
+     * @param idleTime in milliseconds, 0 to never pause
+     */
+    public void setAutoPause(long idleTime) {
+        mAutoPauseTime = idleTime;
+    }
+
+    private void requestStage(Uploader uploader) {
+        synchronized (mLock) {
+            mStageUploader = uploader;
+        }
+        startStage();
+    }
+
+    // Pixels of tiles are only staged for still images.
+    // Frames of animated images are changed too frequently.
+    private void startStage() {
+        final ImageData imageData = mImage.getImageData();
+        final Runnable runnable;
+
+        synchronized (mLock) {
+            if (mStageUploader == null || mStageRunnable != null ||
+                    mNeedRecycle || mImage.isRecycled() ||
+                    !imageData.isCompleted() || imageData.getFrameCount() != 1) {
+                return;
+            }
+            for (final Tile tile : mTiles) {
+                tile.markStagePending();
+            }
+            runnable = new StageRunnable();
+            mStageRunnable = runnable;
+        }
+
+        sStageExecutor.execute(runnable);
+    }
+
+    private void cancelStage() {
+        for (final Tile tile : mTiles) {
+            tile.cancelStage();
+        }
+    }
+
+    private void wakeStageUploader() {
+        final Uploader uploader;
+        synchronized (mLock) {
+            uploader = mStageUploader;
+        }
+        if (uploader != null) {
+            uploader.wake();
+        }
+    }
+
+    // Visible tiles first, then prefetched tiles, then in upload order
+    private Tile findStageTile() {
+        Tile prefetch = null;
+        Tile any = null;
+        for (final Tile tile : mTiles) {
+            if (tile.getStageGeneration(mImage) < 0) {
+                continue;
+            }
+            if (matchPriority(tile, PRIORITY_VISIBLE)) {
+                return tile;
+            }
+            if (prefetch == null && matchPriority(tile, PRIORITY_PREFETCH)) {
+                prefetch = tile;
+            }
+            if (any == null) {
+                any = tile;
+            }
+        }
+        return prefetch != null ? prefetch : any;
+    }
+
+    // Tiles are all visible until the first draw with a viewport
+    private boolean matchPriority(Tile tile, int priority) {
+        if (mViewport == null || priority == PRIORITY_ANY) {
+            return true;
+        }
+        final RectF rect = priority == PRIORITY_VISIBLE ? mVisibleRect : mPrefetchRect;
+        return tile.offsetX < rect.right && rect.left < tile.offsetX + tile.width &&
+                tile.offsetY < rect.bottom && rect.top < tile.offsetY + tile.height;
+    }
 
+    private int uploadNextTile(GLCanvas canvas, int priority) {
         synchronized (mTiles) {
-            final Tile next = mTiles[mUploadIndex++];
+            if (mPendingTiles == 0) return UPLOAD_DONE;
+
+            final Tile[] tiles = mTiles;
+            int index = mUploadIndex;
+            if (index < 0) {
+                boolean staging = false;
+                boolean deferred = false;
+                for (int i = 0, n = tiles.length; i < n; i++) {
+                    final Tile tile = tiles[i];
+                    if (!tile.uploadPending) {
+                        continue;
+                    }
+                    if (!matchPriority(tile, priority)) {
+                        deferred = true;
+                        continue;
+                    }
+                    if (tile.isStaging()) {
+                        staging = true;
+                        continue;
+                    }
+                    index = i;
+                    break;
+                }
+                if (index < 0) {
+                    if (staging) {
+                        return UPLOAD_WAIT;
+                    } else if (deferred) {
+                        return UPLOAD_DEFERRED;
+                    } else {
+                        // Tiles are freed
+                        mPendingTiles = 0;
+                        return UPLOAD_DONE;
+                    }
+                }
+            }
 
-            // Make sure tile has not already been recycled by the time
-            // this is called (race condition in onGLIdle)
-            if (next.image != null) {
-                final boolean hasBeenLoad = next.isLoaded();
-                next.updateContent(canvas);
+            final Tile next = tiles[index];
+            if (!next.needsTexture()) {
+                // Nothing to upload, drop staged pixels
+                next.cancelStage();
+            } else if (next.image != null) {
+                // Make sure tile has not already been recycled by the time
+                // this is called (race condition in onGLIdle)
+                final boolean hasBeenLoad = next.isLoaded() && !next.isStripPending();
+                // Large tile takes several calls, stay at this tile until all strips are in
+                if (!next.uploadStrip(canvas)) {
+                    mUploadIndex = index;
+                    return UPLOAD_PROGRESS;
+                }
 
                 // It will take some time for a texture to be drawn for the first
                 // time. When scrolling, we need to draw several tiles on the screen
@@ -493,8 +1597,36 @@ public class ImageTexture implements Texture, Animatable {
                 // been uploaded.
                 if (!hasBeenLoad) next.draw(canvas, 0, 0);
             }
+            next.uploadPending = false;
+            mUploadIndex = -1;
+            mLostTileDraws = 0;
+            mPendingTiles--;
+            return mPendingTiles == 0 ? UPLOAD_DONE : UPLOAD_PROGRESS;
+        }
+    }
+
+    // The largest power of 2 which keeps the image not smaller than the target size
+    static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0) {
+            targetWidth = width;
         }
-        return mUploadIndex == mTiles.length;
+        if (targetHeight <= 0) {
+            targetHeight = height;
+        }
+        while (width / (sampleSize * 2) >= Math.max(targetWidth, 1) &&
+                height / (sampleSize * 2) >= Math.max(targetHeight, 1)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns the sample size of the image, {@link #getWidth()} and
+     * {@link #getHeight()} are the subsampled size.
+     */
+    public int getSampleSize() {
+        return mSampleSize;
     }
 
     @Override
@@ -520,7 +1652,7 @@ public class ImageTexture implements Texture, Animatable {
     //    +----------+                     |               |
     //      Texture                        +---------------+
     //                                          Canvas
-    private static void mapRect(RectF output,
+    static void mapRect(RectF output,
             RectF src, float x0, float y0, float x, float y, float scaleX,
             float scaleY) {
         output.set(x + (src.left - x0) * scaleX,
@@ -531,14 +1663,159 @@ public class ImageTexture implements Texture, Animatable {
 
     @RenderThread
     private void syncFrame() {
+        final int generation = sContextGeneration;
+        if (mContextGeneration != generation) {
+            mContextGeneration = generation;
+            recoverTiles();
+        }
+        if (mHasLostTiles && (mUploader == null || ++mLostTileDraws > LOST_TILE_DRAWS)) {
+            // No uploader works on them, upload them when drawn
+            showLostTiles();
+        }
+
+        // The animation thread checks auto pause with mLock, so it can't suspend
+        // itself between the draw time update and the handoff
+        final boolean suspended;
+        synchronized (mLock) {
+            mLastDrawTime = SystemClock.uptimeMillis();
+            suspended = mSuspended.getAndSet(false);
+        }
+        if (suspended) {
+            startAnimateRunnable();
+        }
+
         if (mFrameDirty.getAndSet(false)) {
             // invalid tiles
             for (final Tile tile : mTiles) {
-                tile.invalidateContent();
+                tile.invalidateFrame();
             }
+            notifyFrameDrawn();
         }
     }
 
+    // Tiles are uploaded again by the uploader, visible tiles first, and are not
+    // drawn until then. Without an uploader, they are uploaded when drawn.
+    @RenderThread
+    private void recoverTiles() {
+        final Uploader uploader = mUploader;
+        synchronized (mTiles) {
+            int pending = 0;
+            for (final Tile tile : mTiles) {
+                tile.releaseStripPixels();
+                tile.uploaded = false;
+                if (tile.image != null && tile.needsTexture()) {
+                    tile.uploadPending = true;
+                    tile.lost = uploader != null;
+                    pending++;
+                } else {
+                    tile.uploadPending = false;
+                }
+            }
+            mPendingTiles = pending;
+            mUploadIndex = -1;
+        }
+        mHasLostTiles = uploader != null;
+        mLostTileDraws = 0;
+        if (uploader != null) {
+            uploader.addTexture(this);
+        }
+    }
+
+    @RenderThread
+    private void showLostTiles() {
+        synchronized (mTiles) {
+            for (final Tile tile : mTiles) {
+                tile.lost = false;
+            }
+        }
+        mHasLostTiles = false;
+    }
+
+    // The uploader doesn't work on this texture anymore
+    private void detachUploader(Uploader uploader) {
+        if (mUploader == uploader) {
+            mUploader = null;
+            mUploading = false;
+        }
+    }
+
+    /**
+     * Marks tiles of all textures invalid, call it when GL context is lost,
+     * e.g. in {@code onSurfaceCreated()}. Nothing is done at once, a texture
+     * uploads its tiles again in its next draw, so textures not drawn any
+     * more cost nothing.
+     */
+    public static synchronized void onContextLost() {
+        sContextGeneration++;
+    }
+
+    /**
+     * Sets the visible area of the canvas, in the coordinate which draw
+     * methods use. Tiles out of it are not drawn, and are uploaded after
+     * visible tiles.
+     *
+     * @param viewport the visible area, null for the whole canvas
+     */
+    public void setViewport(RectF viewport) {
+        setViewport(viewport, 0.0f, 0.0f);
+    }
+
+    /**
+     * Sets the visible area of the canvas and how fast it is moving.
+     * The uploader uploads tiles which the viewport will reach in next
+     * few frames, before the other invisible tiles.
+     *
+     * @param viewport the visible area, null for the whole canvas
+     * @param velocityX the velocity of the viewport on x axis, in pixels per second
+     * @param velocityY the velocity of the viewport on y axis, in pixels per second
+     */
+    public void setViewport(RectF viewport, float velocityX, float velocityY) {
+        if (viewport == null) {
+            mViewport = null;
+        } else {
+            if (mViewport == null) {
+                mViewport = new RectF();
+            }
+            mViewport.set(viewport);
+        }
+        mVelocityX = velocityX;
+        mVelocityY = velocityY;
+    }
+
+    // Maps the viewport back to this texture, clipped by the area to draw.
+    // Returns the area of this texture to draw.
+    @RenderThread
+    private RectF updateVisibleRect(float left, float top, float right, float bottom,
+            float x0, float y0, float x, float y, float scaleX, float scaleY) {
+        final RectF visible = mVisibleRect;
+        final RectF prefetch = mPrefetchRect;
+        final RectF viewport = mViewport;
+        visible.set(left, top, right, bottom);
+        if (viewport == null || !(scaleX > 0 && scaleY > 0)) {
+            prefetch.set(visible);
+            return visible;
+        }
+
+        // The viewport in this texture
+        final float viewportLeft = x0 + (viewport.left - x) / scaleX;
+        final float viewportTop = y0 + (viewport.top - y) / scaleY;
+        final float viewportRight = x0 + (viewport.right - x) / scaleX;
+        final float viewportBottom = y0 + (viewport.bottom - y) / scaleY;
+        final float dx = mVelocityX * PREFETCH_TIME / scaleX;
+        final float dy = mVelocityY * PREFETCH_TIME / scaleY;
+        prefetch.set(viewportLeft, viewportTop, viewportRight, viewportBottom);
+        prefetch.union(viewportLeft + dx, viewportTop + dy, viewportRight + dx, viewportBottom + dy);
+        // Not clipped by the area to draw, it may only cover the viewport
+        if (!prefetch.intersect(0, 0, mWidth, mHeight)) {
+            prefetch.setEmpty();
+        }
+
+        if (!visible.intersect(viewportLeft, viewportTop, viewportRight, viewportBottom)) {
+            visible.setEmpty();
+        }
+        return visible;
+    }
+
     @Override
     public void draw(GLCanvas canvas, int x, int y) {
         draw(canvas, x, y, mWidth, mHeight);
@@ -547,87 +1824,163 @@ public class ImageTexture implements Texture, Animatable {
     // Draws the texture on to the specified rectangle.
     @Override
     public void draw(GLCanvas canvas, int x, int y, int w, int h) {
-        final RectF src = mSrcRect;
-        final RectF dest = mDestRect;
-        final float scaleX = (float) w / mWidth;
-        final float scaleY = (float) h / mHeight;
-
-        syncFrame();
-        for (final Tile t : mTiles) {
-            src.set(0, 0, t.width, t.height);
-            src.offset(t.offsetX, t.offsetY);
-            mapRect(dest, src, 0, 0, x, y, scaleX, scaleY);
-            src.offset(t.borderSize - t.offsetX, t.borderSize - t.offsetY);
-            canvas.drawTexture(t, src, dest);
-        }
+        drawTiles(canvas, false, 0, 0.0f, 0, 0, mWidth, mHeight,
+                0, 0, x, y, (float) w / mWidth, (float) h / mHeight);
     }
 
     // Draws a sub region of this texture on to the specified rectangle.
     @Override
     public void draw(GLCanvas canvas, RectF source, RectF target) {
-        final RectF src = mSrcRect;
-        final RectF dest = mDestRect;
-        final float x0 = source.left;
-        final float y0 = source.top;
-        final float x = target.left;
-        final float y = target.top;
-        final float scaleX = target.width() / source.width();
-        final float scaleY = target.height() / source.height();
-
-        syncFrame();
-        for (final Tile t : mTiles) {
-            src.set(0, 0, t.width, t.height);
-            src.offset(t.offsetX, t.offsetY);
-            if (!src.intersect(source)) {
-                continue;
-            }
-            mapRect(dest, src, x0, y0, x, y, scaleX, scaleY);
-            src.offset(t.borderSize - t.offsetX, t.borderSize - t.offsetY);
-            canvas.drawTexture(t, src, dest);
-        }
+        drawTiles(canvas, false, 0, 0.0f, source.left, source.top, source.right, source.bottom,
+                source.left, source.top, target.left, target.top,
+                target.width() / source.width(), target.height() / source.height());
     }
 
     // Draws a mixed color of this texture and a specified color onto the
     // a rectangle. The used color is: from * (1 - ratio) + to * ratio.
     public void drawMixed(GLCanvas canvas, int color, float ratio,
             int x, int y, int width, int height) {
-        final RectF src = mSrcRect;
-        final RectF dest = mDestRect;
-        final float scaleX = (float) width / mWidth;
-        final float scaleY = (float) height / mHeight;
-
-        syncFrame();
-        for (final Tile t : mTiles) {
-            src.set(0, 0, t.width, t.height);
-            src.offset(t.offsetX, t.offsetY);
-            mapRect(dest, src, 0, 0, x, y, scaleX, scaleY);
-            src.offset(t.borderSize - t.offsetX, t.borderSize - t.offsetY);
-            canvas.drawMixed(t, color, ratio, src, dest);
-        }
+        drawTiles(canvas, true, color, ratio, 0, 0, mWidth, mHeight,
+                0, 0, x, y, (float) width / mWidth, (float) height / mHeight);
     }
 
     public void drawMixed(GLCanvas canvas, int color, float ratio,
             RectF source, RectF target) {
-        final RectF src = mSrcRect;
-        final RectF dest = mDestRect;
-        final float x0 = source.left;
-        final float y0 = source.top;
-        final float x = target.left;
-        final float y = target.top;
-        final float scaleX = target.width() / source.width();
-        final float scaleY = target.height() / source.height();
+        drawTiles(canvas, true, color, ratio, source.left, source.top, source.right, source.bottom,
+                source.left, source.top, target.left, target.top,
+                target.width() / source.width(), target.height() / source.height());
+    }
+
+    // Draws the area (left, top, right, bottom) of this texture,
+    // mapped by (x0, y0, x, y, scaleX, scaleY), see mapRect().
+    @RenderThread
+    private void drawTiles(GLCanvas canvas, boolean mixed, int color, float ratio,
+            float left, float top, float right, float bottom,
+            float x0, float y0, float x, float y, float scaleX, float scaleY) {
+        final RectF visible = updateVisibleRect(left, top, right, bottom,
+                x0, y0, x, y, scaleX, scaleY);
 
+        final long traceStart = ImageTrace.begin();
         syncFrame();
-        for (final Tile t : mTiles) {
-            src.set(0, 0, t.width, t.height);
-            src.offset(t.offsetX, t.offsetY);
-            if (!src.intersect(source)) {
+        updateGeometry(visible, x0, y0, x, y, scaleX, scaleY);
+
+        drawCulledTiles(canvas, mTiles, mVisibleTiles, mVisibleTileCount, mGeometry,
+                mSrcRect, mDestRect, isUploaderActive(), mixed, color, ratio);
+        ImageTrace.end(ImageTrace.DRAW, traceStart, ImageTrace.textureId(mImage), -1);
+    }
+
+    // Whether an uploader is working on this texture and is not stalled
+    private boolean isUploaderActive() {
+        final Uploader uploader = mUploader;
+        return mUploading && uploader != null &&
+                SystemClock.uptimeMillis() - uploader.mActiveTime < UPLOADER_STALL_TIME;
+    }
+
+    // Draws the tiles found by cullTiles(), src and dest are for reuse.
+    // If waitUploader, tiles pending are left to the uploader, instead of
+    // uploading a whole tile in this frame.
+    static void drawCulledTiles(GLCanvas canvas, Tile[] tiles, int[] visibleTiles, int count,
+            float[] geometry, RectF src, RectF dest, boolean waitUploader,
+            boolean mixed, int color, float ratio) {
+        for (int i = 0; i < count; i++) {
+            final Tile t = tiles[visibleTiles[i]];
+            // Wait for the uploader to put all strips in or to recover it,
+            // and nothing to draw for empty tiles
+            if (t.isStripPending() || t.lost || t.isTransparent()) {
+                continue;
+            }
+            if (waitUploader && t.uploadPending && !t.uploaded && t.needsTexture()) {
+                continue;
+            }
+            final int g = GEOMETRY_SIZE * i;
+            if (t.isSolid()) {
+                canvas.fillRect(geometry[g + 4], geometry[g + 5],
+                        geometry[g + 6] - geometry[g + 4], geometry[g + 7] - geometry[g + 5],
+                        mixed ? mixColor(t.solidColor, color, ratio) : t.solidColor);
+            } else {
+                src.set(geometry[g], geometry[g + 1], geometry[g + 2], geometry[g + 3]);
+                dest.set(geometry[g + 4], geometry[g + 5], geometry[g + 6], geometry[g + 7]);
+                if (mixed) {
+                    canvas.drawMixed(t, color, ratio, src, dest);
+                } else {
+                    canvas.drawTexture(t, src, dest);
+                }
+            }
+        }
+    }
+
+    // Finds visible tiles and their source and target rectangles,
+    // only if the visible area or the mapping is changed since last draw.
+    @RenderThread
+    private void updateGeometry(RectF visible,
+            float x0, float y0, float x, float y, float scaleX, float scaleY) {
+        final float[] key = mGeometryKey;
+        if (mGeometryValid && key[0] == visible.left && key[1] == visible.top &&
+                key[2] == visible.right && key[3] == visible.bottom &&
+                key[4] == x0 && key[5] == y0 && key[6] == x && key[7] == y &&
+                key[8] == scaleX && key[9] == scaleY) {
+            return;
+        }
+        key[0] = visible.left;
+        key[1] = visible.top;
+        key[2] = visible.right;
+        key[3] = visible.bottom;
+        key[4] = x0;
+        key[5] = y0;
+        key[6] = x;
+        key[7] = y;
+        key[8] = scaleX;
+        key[9] = scaleY;
+        mGeometryValid = true;
+
+        mVisibleTileCount = cullTiles(mTiles, mVisibleTiles, mGeometry,
+                visible.left, visible.top, visible.right, visible.bottom,
+                x0, y0, x, y, scaleX, scaleY);
+    }
+
+    // Puts indexes of tiles in the visible area to visibleTiles, and their
+    // source and target rectangles to geometry. Returns the number of them.
+    static int cullTiles(Tile[] tiles, int[] visibleTiles, float[] geometry,
+            float visibleLeft, float visibleTop, float visibleRight, float visibleBottom,
+            float x0, float y0, float x, float y, float scaleX, float scaleY) {
+        int count = 0;
+        for (int i = 0, n = tiles.length; i < n; i++) {
+            final Tile t = tiles[i];
+            // The visible part of the tile in this texture
+            final float left = Math.max(t.offsetX, visibleLeft);
+            final float top = Math.max(t.offsetY, visibleTop);
+            final float right = Math.min(t.offsetX + t.width, visibleRight);
+            final float bottom = Math.min(t.offsetY + t.height, visibleBottom);
+            if (!(left < right && top < bottom)) {
                 continue;
             }
-            mapRect(dest, src, x0, y0, x, y, scaleX, scaleY);
-            src.offset(t.borderSize - t.offsetX, t.borderSize - t.offsetY);
-            canvas.drawMixed(t, color, ratio, src, dest);
+
+            final int g = GEOMETRY_SIZE * count;
+            // Source in the tile
+            final float dx = t.borderSize - t.offsetX;
+            final float dy = t.borderSize - t.offsetY;
+            geometry[g] = left + dx;
+            geometry[g + 1] = top + dy;
+            geometry[g + 2] = right + dx;
+            geometry[g + 3] = bottom + dy;
+            // Target on the canvas
+            geometry[g + 4] = x + (left - x0) * scaleX;
+            geometry[g + 5] = y + (top - y0) * scaleY;
+            geometry[g + 6] = x + (right - x0) * scaleX;
+            geometry[g + 7] = y + (bottom - y0) * scaleY;
+            visibleTiles[count++] = i;
         }
+        return count;
+    }
+
+    // from * (1 - ratio) + to * ratio, like GLCanvas.drawMixed()
+    private static int mixColor(int from, int to, float ratio) {
+        final float r = 1 - ratio;
+        return Color.argb(
+                (int) (Color.alpha(from) * r + Color.alpha(to) * ratio),
+                (int) (Color.red(from) * r + Color.red(to) * ratio),
+                (int) (Color.green(from) * r + Color.green(to) * ratio),
+                (int) (Color.blue(from) * r + Color.blue(to) * ratio));
     }
 
     @Override
@@ -636,14 +1989,247 @@ public class ImageTexture implements Texture, Animatable {
     }
 
     public boolean isReady() {
-        return mUploadIndex == mTiles.length;
+        return mPendingTiles == 0;
+    }
+
+    ImageData getImageData() {
+        return mImage.getImageData();
+    }
+
+    // Bytes of texture memory of all tiles
+    long getTileBytes() {
+        long bytes = 0;
+        for (final Tile tile : mTiles) {
+            bytes += getTileBytes(tile.tileSize);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns bytes of texture memory of tiles out of the image.
+     *
+     * @see TileLayout
+     */
+    public long getWastedBytes() {
+        return getTileBytes() - 4L * mWidth * mHeight;
+    }
+
+    static long getTileBytes(int tileSize) {
+        final long size = TILE_WHOLE_SIZE[tileSize];
+        return 4 * size * size;
+    }
+
+    // Releases texture memory of all tiles. They are uploaded again
+    // in next draw, or by an uploader if the texture is added again.
+    // Render thread must be locked, see trimMemory().
+    private long releaseTiles() {
+        long bytes = 0;
+        synchronized (mTiles) {
+            final Tile[] tiles = mTiles;
+            for (int i = 0, n = tiles.length; i < n; i++) {
+                final Tile tile = tiles[i];
+                // Skip freed tiles and tiles not uploaded
+                if (tile.image == null || !(tile.isLoaded() || tile.isStripPending())) {
+                    continue;
+                }
+                if (tile.isLoaded()) {
+                    bytes += getTileBytes(tile.tileSize);
+                }
+                tile.recycle();
+                tile.invalidateFrame();
+                if (i == mUploadIndex) {
+                    mUploadIndex = -1;
+                }
+                if (!tile.uploadPending) {
+                    tile.uploadPending = true;
+                    mPendingTiles++;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // The animation is paused until next draw
+    private void suspendAnimation() {
+        mSuspended.set(true);
+    }
+
+    private static class TileSet {
+        public int width;
+        public int height;
+        public TileLayout layout;
+        public Tile[] tiles;
+        public int[] visibleTiles;
+        public float[] geometry;
+    }
+
+    // Takes a recycled tile set of the same layout
+    private static TileSet obtainTileSet(int width, int height, TileLayout layout) {
+        synchronized (sTileSets) {
+            for (int i = sTileSets.size() - 1; i >= 0; i--) {
+                final TileSet set = sTileSets.get(i);
+                if (set.width == width && set.height == height && set.layout == layout) {
+                    sTileSets.remove(i);
+                    return set;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Keeps the tiles as a set for a new texture of the same size,
+    // the eldest set goes to the free lists if too many are kept
+    private void recycleTileSet() {
+        for (final Tile tile : mTiles) {
+            tile.invalidate();
+        }
+
+        final TileSet set = new TileSet();
+        set.width = mWidth;
+        set.height = mHeight;
+        set.layout = mLayout;
+        set.tiles = mTiles;
+        set.visibleTiles = mVisibleTiles;
+        set.geometry = mGeometry;
+
+        final TileSet eldest;
+        synchronized (sTileSets) {
+            sTileSets.add(set);
+            eldest = sTileSets.size() > TILE_SET_CACHE_SIZE ? sTileSets.remove(0) : null;
+        }
+        if (eldest != null) {
+            for (final Tile tile : eldest.tiles) {
+                tile.free();
+            }
+        }
+    }
+
+    // Puts all kept tile sets into the free lists
+    private static void freeTileSets() {
+        final TileSet[] sets;
+        synchronized (sTileSets) {
+            sets = sTileSets.toArray(new TileSet[sTileSets.size()]);
+            sTileSets.clear();
+        }
+        for (final TileSet set : sets) {
+            for (final Tile tile : set.tiles) {
+                tile.free();
+            }
+        }
+    }
+
+    // Bytes of texture memory of uploaded tiles of all textures, in free lists and tile sets
+    static long getResidentTextureBytes() {
+        long bytes = 0;
+        synchronized (sTileSets) {
+            for (final TileSet set : sTileSets) {
+                for (final Tile tile : set.tiles) {
+                    if (tile.isLoaded()) {
+                        bytes += getTileBytes(tile.tileSize);
+                    }
+                }
+            }
+        }
+        synchronized (sFreeTileLock) {
+            for (final Tile head : TILE_FREE_HEAD) {
+                for (Tile tile = head; tile != null; tile = tile.nextFreeTile) {
+                    if (tile.isLoaded()) {
+                        bytes += getTileBytes(tile.tileSize);
+                    }
+                }
+            }
+        }
+
+        final ImageTexture[] textures;
+        synchronized (sTextures) {
+            textures = sTextures.keySet().toArray(new ImageTexture[sTextures.size()]);
+        }
+        for (final ImageTexture texture : textures) {
+            for (final Tile tile : texture.mTiles) {
+                if (tile.isLoaded()) {
+                    bytes += getTileBytes(tile.tileSize);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // Releases texture memory of kept tile sets, tiles in free lists, and buffers in the pool
+    private static long trimPools() {
+        freeTileSets();
+        long bytes = 0;
+        synchronized (sFreeTileLock) {
+            for (int i = 0, n = TILE_FREE_HEAD.length; i < n; i++) {
+                for (Tile tile = TILE_FREE_HEAD[i]; tile != null; tile = tile.nextFreeTile) {
+                    if (tile.isLoaded()) {
+                        bytes += getTileBytes(tile.tileSize);
+                    }
+                    tile.recycle();
+                }
+                TILE_FREE_HEAD[i] = null;
+            }
+        }
+        return bytes + sStageBufferPool.trim();
+    }
+
+    /**
+     * Releases memory when the system is running low on memory,
+     * e.g. in {@code onTrimMemory()}. Textures which are not drawn
+     * in {@code idleTime} are idle, their tiles are uploaded again
+     * when they are drawn.
+     * <p>
+     * Tiles are touched without any lock in render thread, so levels above
+     * {@link #TRIM_POOLS} must be called in render thread, or with render
+     * thread locked, between {@code GLRoot.lockRenderThread()} and
+     * {@code GLRoot.unlockRenderThread()}.
+     *
+     * @param level {@link #TRIM_POOLS}, {@link #TRIM_IDLE_TEXTURES}
+     *              or {@link #TRIM_IDLE_ANIMATIONS}
+     * @param idleTime in milliseconds
+     * @return the bytes released, texture memory and native memory
+     */
+    public static long trimMemory(int level, long idleTime) {
+        long bytes = trimPools();
+        if (level < TRIM_IDLE_TEXTURES) {
+            return bytes;
+        }
+
+        final ImageTexture[] textures;
+        synchronized (sTextures) {
+            textures = sTextures.keySet().toArray(new ImageTexture[sTextures.size()]);
+        }
+        final long idleSince = SystemClock.uptimeMillis() - idleTime;
+        for (final ImageTexture texture : textures) {
+            if (texture.mLastDrawTime > idleSince) {
+                continue;
+            }
+            bytes += texture.releaseTiles();
+            if (level >= TRIM_IDLE_ANIMATIONS) {
+                texture.suspendAnimation();
+            }
+        }
+        return bytes;
     }
 
     public void recycle() {
-        for (final Tile mTile : mTiles) {
-            mTile.free();
+        final boolean recycleTiles;
+        synchronized (sTextures) {
+            recycleTiles = sTextures.remove(this) != null;
         }
 
+        if (recycleTiles) {
+            // The uploader must not touch the tiles after they are given to another texture
+            final Uploader uploader = mUploader;
+            if (uploader != null) {
+                uploader.remove(this);
+            }
+            recycleTileSet();
+        }
+
+        // Let the animation thread find out it is recycled
+        mFrameDirty.set(false);
+        notifyFrameDrawn();
+
         synchronized (mImage) {
             if (mLock.isLocked()) {
                 mNeedRecycle = true;
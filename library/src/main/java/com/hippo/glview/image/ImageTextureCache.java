@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.image.ImageData;
+import com.hippo.image.ImageRenderer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps recently released {@link ImageTexture}s, so opening the same
+ * image again needs no decoding or uploading. Textures are kept up to a
+ * limit of texture bytes. The decoded image data of a texture which is out
+ * of the limit can be kept too, up to a limit of native bytes.
+ *
+ * @param <K> the type of the source key, chosen by the caller
+ */
+public class ImageTextureCache<K> {
+
+    private final long mMaxTextureBytes;
+    private final long mMaxImageDataBytes;
+
+    // The eldest is the least recently released
+    private final LinkedHashMap<K, Entry> mEntries = new LinkedHashMap<>();
+    private long mTextureBytes;
+    private long mImageDataBytes;
+
+    private static class Entry {
+        // Null if only the image data is kept
+        public ImageTexture texture;
+        public long textureBytes;
+        public ImageData imageData;
+        // Keeps the image data from being recycled with the texture, null if not kept
+        public ImageRenderer pin;
+        public long imageDataBytes;
+    }
+
+    /**
+     * @param maxTextureBytes the max bytes of texture memory of the kept textures
+     * @param maxImageDataBytes the max bytes of kept image data, 0 to keep none.
+     *                          The size of image data is estimated as
+     *                          4 bytes for each pixel.
+     */
+    public ImageTextureCache(long maxTextureBytes, long maxImageDataBytes) {
+        mMaxTextureBytes = maxTextureBytes;
+        mMaxImageDataBytes = maxImageDataBytes;
+    }
+
+    /**
+     * Takes the texture of the key out of this cache. The caller owns it then,
+     * and should {@link #release(Object, ImageTexture)} or recycle it later.
+     *
+     * @return the texture, or null if neither the texture nor its image data is kept
+     */
+    @Nullable
+    public ImageTexture obtain(@NonNull K key) {
+        final Entry entry;
+        synchronized (this) {
+            entry = mEntries.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            mTextureBytes -= entry.textureBytes;
+            if (entry.pin != null) {
+                mImageDataBytes -= entry.imageDataBytes;
+            }
+        }
+
+        final ImageTexture texture = entry.texture != null ?
+                entry.texture : new ImageTexture(entry.imageData);
+        if (entry.pin != null) {
+            // The texture keeps the image data now
+            entry.pin.recycle();
+        }
+        return texture;
+    }
+
+    /**
+     * Puts a texture which is not used anymore into this cache, instead of
+     * recycling it. Its animation is stopped and its callback is cleared.
+     */
+    public void release(@NonNull K key, @NonNull ImageTexture texture) {
+        texture.stop();
+        texture.setCallback(null);
+
+        final ImageData imageData = texture.getImageData();
+        final Entry entry = new Entry();
+        entry.texture = texture;
+        entry.textureBytes = texture.getTileBytes();
+        entry.imageData = imageData;
+        if (mMaxImageDataBytes > 0) {
+            entry.pin = imageData.createImageRenderer();
+            entry.imageDataBytes = 4L * imageData.getWidth() * imageData.getHeight();
+        }
+
+        final Entry old;
+        synchronized (this) {
+            old = mEntries.remove(key);
+            if (old != null) {
+                mTextureBytes -= old.textureBytes;
+                if (old.pin != null) {
+                    mImageDataBytes -= old.imageDataBytes;
+                }
+            }
+            mEntries.put(key, entry);
+            mTextureBytes += entry.textureBytes;
+            mImageDataBytes += entry.imageDataBytes;
+        }
+        if (old != null) {
+            if (old.texture == texture) {
+                // Released twice, the texture is in the new entry
+                old.texture = null;
+            }
+            recycleEntry(old);
+        }
+
+        trim(mMaxTextureBytes, mMaxImageDataBytes);
+    }
+
+    /**
+     * Recycles all kept textures and image data.
+     */
+    public void clear() {
+        trim(0, 0);
+    }
+
+    /**
+     * Recycles the least recently released textures and image data until
+     * they fit the limits.
+     *
+     * @return the bytes released, texture bytes and native bytes
+     */
+    public long trim(long maxTextureBytes, long maxImageDataBytes) {
+        long released = 0;
+        for (;;) {
+            final Entry entry;
+            final ImageTexture texture;
+            final boolean wholeEntry;
+            synchronized (this) {
+                entry = findEldest(maxTextureBytes, maxImageDataBytes);
+                if (entry == null) {
+                    return released;
+                }
+                // Only drop the texture if the image data fits
+                wholeEntry = entry.pin == null || entry.texture == null ||
+                        mImageDataBytes > maxImageDataBytes;
+                mTextureBytes -= entry.textureBytes;
+                released += entry.textureBytes;
+                entry.textureBytes = 0;
+                texture = entry.texture;
+                entry.texture = null;
+                if (wholeEntry) {
+                    mEntries.values().remove(entry);
+                    if (entry.pin != null) {
+                        mImageDataBytes -= entry.imageDataBytes;
+                        released += entry.imageDataBytes;
+                    }
+                }
+            }
+
+            if (texture != null) {
+                texture.recycle();
+            }
+            if (wholeEntry) {
+                recycleEntry(entry);
+            }
+        }
+    }
+
+    // Guarded by this
+    private Entry findEldest(long maxTextureBytes, long maxImageDataBytes) {
+        final boolean trimTextures = mTextureBytes > maxTextureBytes;
+        final boolean trimImageData = mImageDataBytes > maxImageDataBytes;
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if ((trimTextures && entry.texture != null) || (trimImageData && entry.pin != null)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static void recycleEntry(Entry entry) {
+        if (entry.texture != null) {
+            entry.texture.recycle();
+            entry.texture = null;
+        }
+        if (entry.pin != null) {
+            entry.pin.recycle();
+            entry.pin = null;
+            if (!entry.imageData.isReferenced()) entry.imageData.recycle();
+        }
+    }
+
+    public synchronized long getTextureBytes() {
+        return mTextureBytes;
+    }
+
+    public synchronized long getImageDataBytes() {
+        return mImageDataBytes;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.glview.image;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records how long decoding, lock waiting, staging, uploading and drawing
+ * take, in a ring buffer. The events can be written as Chrome trace JSON,
+ * which chrome://tracing and Perfetto open. It is disabled by default,
+ * and costs a volatile read for each event then.
+ */
+public final class ImageTrace {
+
+    static final String DECODE = "decode";
+    static final String LOCK_WAIT = "lock_wait";
+    static final String STAGE = "stage";
+    static final String UPLOAD = "upload";
+    static final String DRAW = "draw";
+
+    private static volatile boolean sEnabled;
+
+    // Guarded by ImageTrace.class
+    private static int sCapacity;
+    // Index of next event, the buffer is full if sCount == sCapacity
+    private static int sNext;
+    private static int sCount;
+    private static String[] sNames;
+    private static long[] sThreads;
+    private static long[] sStarts;
+    private static long[] sDurations;
+    private static int[] sTextures;
+    private static int[] sTileSizes;
+    private static final HashMap<Long, String> sThreadNames = new HashMap<>();
+
+    private ImageTrace() {}
+
+    /**
+     * Starts recording, the buffer is cleared.
+     *
+     * @param capacity the max number of events kept, old events are dropped
+     */
+    public static synchronized void enable(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        sCapacity = capacity;
+        sNext = 0;
+        sCount = 0;
+        sNames = new String[capacity];
+        sThreads = new long[capacity];
+        sStarts = new long[capacity];
+        sDurations = new long[capacity];
+        sTextures = new int[capacity];
+        sTileSizes = new int[capacity];
+        sThreadNames.clear();
+        sEnabled = true;
+    }
+
+    /**
+     * Stops recording, recorded events are kept for {@link #write(Writer)}.
+     */
+    public static void disable() {
+        sEnabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    // Returns the start time for end(), 0 if disabled
+    static long begin() {
+        return sEnabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * @param start the return value of {@link #begin()}
+     * @param texture the id of the texture, 0 for none
+     * @param tileSize the tile size, -1 for none
+     */
+    static void end(String name, long start, int texture, int tileSize) {
+        if (start == 0L || !sEnabled) {
+            return;
+        }
+        final long end = System.nanoTime();
+        final Thread thread = Thread.currentThread();
+        final long tid = thread.getId();
+
+        synchronized (ImageTrace.class) {
+            if (sCapacity == 0) {
+                return;
+            }
+            final int index = sNext;
+            sNames[index] = name;
+            sThreads[index] = tid;
+            sStarts[index] = start;
+            sDurations[index] = end - start;
+            sTextures[index] = texture;
+            sTileSizes[index] = tileSize;
+            sNext = (index + 1) % sCapacity;
+            if (sCount < sCapacity) {
+                sCount++;
+            }
+            if (!sThreadNames.containsKey(tid)) {
+                sThreadNames.put(tid, thread.getName());
+            }
+        }
+    }
+
+    // Texture id for events, the same for a texture and its tiles
+    static int textureId(Object image) {
+        return image != null ? System.identityHashCode(image) : 0;
+    }
+
+    /**
+     * Writes recorded events to the file, see {@link #write(Writer)}.
+     */
+    public static void write(File file) throws IOException {
+        final Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            write(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes recorded events in Chrome trace JSON, from the oldest.
+     */
+    public static synchronized void write(Writer writer) throws IOException {
+        writer.write("{\"traceEvents\":[");
+        boolean first = true;
+        for (final Map.Entry<Long, String> entry : sThreadNames.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":");
+            writer.write(Long.toString(entry.getKey()));
+            writer.write(",\"args\":{\"name\":\"");
+            writer.write(escape(entry.getValue()));
+            writer.write("\"}}");
+        }
+
+        final int capacity = sCapacity;
+        final int start = (sNext - sCount + capacity) % Math.max(capacity, 1);
+        for (int i = 0; i < sCount; i++) {
+            final int index = (start + i) % capacity;
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"");
+            writer.write(sNames[index]);
+            writer.write("\",\"cat\":\"image\",\"ph\":\"X\",\"pid\":0,\"tid\":");
+            writer.write(Long.toString(sThreads[index]));
+            writer.write(",\"ts\":");
+            writer.write(Long.toString(sStarts[index] / 1000));
+            writer.write(",\"dur\":");
+            writer.write(Long.toString(sDurations[index] / 1000));
+            writer.write(",\"args\":{\"texture\":");
+            writer.write(Integer.toString(sTextures[index]));
+            if (sTileSizes[index] >= 0) {
+                writer.write(",\"tileSize\":");
+                writer.write(Integer.toString(ImageTexture.TILE_WHOLE_SIZE[sTileSizes[index]]));
+            }
+            writer.write("}}");
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static String escape(String str) {
+        final StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0, n = str.length(); i < n; i++) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * A pool of direct {@link ByteBuffer}s with a limit of total bytes.
+ * {@link #acquire(int)} blocks until enough buffers are released.
+ */
+final class PixelBufferPool {
+
+    private final long mLimit;
+    // Bytes of all buffers created by this pool and not dropped yet
+    private long mAllocated;
+    private final ArrayList<ByteBuffer> mFree = new ArrayList<>();
+
+    PixelBufferPool(long limit) {
+        mLimit = limit;
+    }
+
+    public synchronized ByteBuffer acquire(int capacity) {
+        for (;;) {
+            for (int i = 0, n = mFree.size(); i < n; i++) {
+                final ByteBuffer buffer = mFree.get(i);
+                if (buffer.capacity() == capacity) {
+                    mFree.remove(i);
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+
+            // Always allow one buffer, or a buffer larger than limit can't be acquired
+            if (mAllocated == 0 || mAllocated + capacity <= mLimit) {
+                mAllocated += capacity;
+                return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            }
+
+            if (!mFree.isEmpty()) {
+                // Drop a free buffer of other capacity to make room
+                mAllocated -= mFree.remove(mFree.size() - 1).capacity();
+                continue;
+            }
+
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Can't interrupt this thread", e);
+            }
+        }
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        mFree.add(buffer);
+        this.notifyAll();
+    }
+
+    /**
+     * Drops all free buffers.
+     *
+     * @return the bytes dropped
+     */
+    public synchronized long trim() {
+        long size = 0;
+        for (final ByteBuffer buffer : mFree) {
+            size += buffer.capacity();
+        }
+        mFree.clear();
+        mAllocated -= size;
+        return size;
+    }
+}
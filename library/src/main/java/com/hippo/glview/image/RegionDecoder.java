@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decodes a part of an image, so the whole image never needs to be in memory.
+ */
+public interface RegionDecoder {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Decodes a region of the image. It is called in worker threads.
+     *
+     * @param region the region in the image
+     * @param sampleSize the bitmap is subsampled by it, always a power of 2
+     * @return the bitmap, or null if failed
+     */
+    @Nullable
+    Bitmap decodeRegion(@NonNull Rect region, int sampleSize);
+
+    /**
+     * Called when the decoder is not used anymore.
+     */
+    void recycle();
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.RectF;
+import android.graphics.drawable.Animatable;
+import android.support.annotation.NonNull;
+
+import com.hippo.glview.glrenderer.GLCanvas;
+import com.hippo.glview.glrenderer.Texture;
+import com.hippo.image.ImageData;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * A handle of an {@link ImageTexture} shared by all handles of the same
+ * {@link ImageData}. They share tiles and the animation, the texture
+ * is recycled when all handles are recycled.
+ */
+public class SharedImageTexture implements Texture, Animatable {
+
+    private static final IdentityHashMap<ImageData, Entry> sEntries = new IdentityHashMap<>();
+
+    private final Entry mEntry;
+    // Guarded by mEntry
+    private boolean mStarted;
+    private boolean mRecycled;
+
+    private RectF mViewport;
+    private float mVelocityX;
+    private float mVelocityY;
+
+    private WeakReference<Callback> mCallback;
+
+    private static class Entry implements ImageTexture.Callback {
+
+        private final ImageData mImageData;
+        private final ImageTexture mTexture;
+        private final ArrayList<SharedImageTexture> mHandles = new ArrayList<>();
+        // The number of started handles
+        private int mStarted;
+
+        public Entry(ImageData imageData) {
+            mImageData = imageData;
+            mTexture = new ImageTexture(imageData);
+            mTexture.setCallback(this);
+        }
+
+        @Override
+        public void invalidateImageTexture(ImageTexture who) {
+            final SharedImageTexture[] handles;
+            synchronized (this) {
+                handles = mHandles.toArray(new SharedImageTexture[mHandles.size()]);
+            }
+            for (final SharedImageTexture handle : handles) {
+                handle.invalidateSelf();
+            }
+        }
+    }
+
+    private SharedImageTexture(Entry entry) {
+        mEntry = entry;
+    }
+
+    /**
+     * Returns a handle of the texture of the image data.
+     * The texture is created if no handle of the image data is alive.
+     */
+    @NonNull
+    public static SharedImageTexture obtain(@NonNull ImageData image) {
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(image);
+            if (entry == null) {
+                entry = new Entry(image);
+                sEntries.put(image, entry);
+            }
+            final SharedImageTexture handle = new SharedImageTexture(entry);
+            synchronized (entry) {
+                entry.mHandles.add(handle);
+            }
+            return handle;
+        }
+    }
+
+    /**
+     * Returns the shared texture, for {@link ImageTexture.Uploader}.
+     * Don't recycle it or set its callback.
+     */
+    public ImageTexture getTexture() {
+        return mEntry.mTexture;
+    }
+
+    public final void setCallback(Callback cb) {
+        mCallback = new WeakReference<>(cb);
+    }
+
+    public Callback getCallback() {
+        if (mCallback != null) {
+            return mCallback.get();
+        }
+        return null;
+    }
+
+    public void invalidateSelf() {
+        final Callback callback = getCallback();
+        if (callback != null) {
+            callback.invalidateSharedImageTexture(this);
+        }
+    }
+
+    /**
+     * @see ImageTexture#setViewport(RectF, float, float)
+     */
+    public void setViewport(RectF viewport, float velocityX, float velocityY) {
+        if (viewport == null) {
+            mViewport = null;
+        } else {
+            if (mViewport == null) {
+                mViewport = new RectF();
+            }
+            mViewport.set(viewport);
+        }
+        mVelocityX = velocityX;
+        mVelocityY = velocityY;
+    }
+
+    /**
+     * Resets the animation of all handles.
+     */
+    public void reset() {
+        mEntry.mTexture.reset();
+    }
+
+    // The animation runs while any handle is started
+    @Override
+    public void start() {
+        final Entry entry = mEntry;
+        final boolean start;
+        synchronized (entry) {
+            if (mRecycled || mStarted) {
+                return;
+            }
+            mStarted = true;
+            start = entry.mStarted++ == 0;
+        }
+        if (start) {
+            entry.mTexture.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        final Entry entry = mEntry;
+        final boolean stop;
+        synchronized (entry) {
+            stop = mStarted && --entry.mStarted == 0;
+            mStarted = false;
+        }
+        if (stop) {
+            entry.mTexture.stop();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mEntry.mTexture.isRunning();
+    }
+
+    public boolean isReady() {
+        return mEntry.mTexture.isReady();
+    }
+
+    @Override
+    public int getWidth() {
+        return mEntry.mTexture.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mEntry.mTexture.getHeight();
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return mEntry.mTexture.isOpaque();
+    }
+
+    @Override
+    public void draw(GLCanvas canvas, int x, int y) {
+        final ImageTexture texture = mEntry.mTexture;
+        texture.setViewport(mViewport, mVelocityX, mVelocityY);
+        texture.draw(canvas, x, y);
+    }
+
+    @Override
+    public void draw(GLCanvas canvas, int x, int y, int w, int h) {
+        final ImageTexture texture = mEntry.mTexture;
+        texture.setViewport(mViewport, mVelocityX, mVelocityY);
+        texture.draw(canvas, x, y, w, h);
+    }
+
+    @Override
+    public void draw(GLCanvas canvas, RectF source, RectF target) {
+        final ImageTexture texture = mEntry.mTexture;
+        texture.setViewport(mViewport, mVelocityX, mVelocityY);
+        texture.draw(canvas, source, target);
+    }
+
+    public void drawMixed(GLCanvas canvas, int color, float ratio,
+            int x, int y, int width, int height) {
+        final ImageTexture texture = mEntry.mTexture;
+        texture.setViewport(mViewport, mVelocityX, mVelocityY);
+        texture.drawMixed(canvas, color, ratio, x, y, width, height);
+    }
+
+    public void drawMixed(GLCanvas canvas, int color, float ratio,
+            RectF source, RectF target) {
+        final ImageTexture texture = mEntry.mTexture;
+        texture.setViewport(mViewport, mVelocityX, mVelocityY);
+        texture.drawMixed(canvas, color, ratio, source, target);
+    }
+
+    /**
+     * Releases this handle. The texture is recycled with the last handle.
+     */
+    public void recycle() {
+        stop();
+
+        final Entry entry = mEntry;
+        final boolean recycleTexture;
+        synchronized (sEntries) {
+            synchronized (entry) {
+                if (mRecycled) {
+                    return;
+                }
+                mRecycled = true;
+                entry.mHandles.remove(this);
+                recycleTexture = entry.mHandles.isEmpty();
+            }
+            if (recycleTexture) {
+                sEntries.remove(entry.mImageData);
+            }
+        }
+        if (recycleTexture) {
+            entry.mTexture.recycle();
+        }
+    }
+
+    public interface Callback {
+        void invalidateSharedImageTexture(SharedImageTexture who);
+    }
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.hippo.glview.annotation.RenderThread;
+import com.hippo.glview.glrenderer.GLCanvas;
+import com.hippo.glview.glrenderer.Texture;
+import com.hippo.yorozuya.thread.InfiniteThreadExecutor;
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * A texture for images too large to decode at once. Only the regions of
+ * visible tiles are decoded by a {@link RegionDecoder}, at the level of detail
+ * which the drawing scale needs. Level n is subsampled by 2^n.
+ */
+public class StreamingImageTexture implements Texture {
+
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 32 * 1024 * 1024;
+    public static final long DEFAULT_TEXTURE_CACHE_SIZE = 64 * 1024 * 1024;
+
+    private static final int INIT_CAPACITY = 32;
+
+    private static final Executor sThreadExecutor =
+            new InfiniteThreadExecutor(10 * 1000, new LinkedList<Runnable>(),
+                    new PriorityThreadFactory("StreamingImageTexture$DecodeTask",
+                            Process.THREAD_PRIORITY_BACKGROUND));
+
+    private final RegionDecoder mDecoder;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxLevel;
+    private final ImageTexture.Tile[][] mLevels;
+
+    // Decoded tile pixels, keyed by level and tile index.
+    // The eldest is the least recently used.
+    private final LinkedHashMap<Long, ByteBuffer> mBlocks =
+            new LinkedHashMap<>(INIT_CAPACITY, 0.75f, true);
+    private final long mBlockCacheSize;
+    private long mBlockBytes;
+    private final PixelBufferPool mBufferPool;
+
+    // Uploaded tiles except the coarsest level, only touched in render thread.
+    // The eldest is the least recently drawn.
+    private final LinkedHashMap<ImageTexture.Tile, ImageTexture.Tile> mResident =
+            new LinkedHashMap<>(INIT_CAPACITY, 0.75f, true);
+    private final long mTextureCacheSize;
+    private long mResidentBytes;
+    private int mFrame;
+    private long mUploadDueTime;
+
+    // Blocks wanted in current frame
+    private long[] mWanted = new long[INIT_CAPACITY];
+    private int mWantedCount;
+
+    private final Object mRequestLock = new Object();
+    // Blocks to decode, guarded by mRequestLock
+    private long[] mRequests = new long[INIT_CAPACITY];
+    private int mRequestCount;
+    private int mRequestIndex;
+    private Runnable mDecodeRunnable;
+    private boolean mRecycled;
+    // Blocks which the decoder failed to decode, never requested again
+    private final HashSet<Long> mFailed = new HashSet<>();
+
+    private RectF mViewport;
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mSrcRect = new RectF();
+    private final RectF mDestRect = new RectF();
+    private final RectF mTempSource = new RectF();
+    private final RectF mTempTarget = new RectF();
+
+    private WeakReference<Callback> mCallback;
+
+    private class DecodeRunnable implements Runnable {
+
+        private final Rect mRegion = new Rect();
+        private final Rect mDst = new Rect();
+        private final Canvas mCanvas = new Canvas();
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Bitmap[] mBitmaps = new Bitmap[ImageTexture.TILE_LARGEST + 1];
+
+        @Override
+        public void run() {
+            for (;;) {
+                final long key;
+                synchronized (mRequestLock) {
+                    if (mRecycled || mRequestIndex >= mRequestCount) {
+                        mDecodeRunnable = null;
+                        if (mRecycled) {
+                            mDecoder.recycle();
+                        }
+                        break;
+                    }
+                    key = mRequests[mRequestIndex++];
+                }
+
+                synchronized (mBlocks) {
+                    if (mBlocks.containsKey(key)) {
+                        continue;
+                    }
+                }
+                if (decodeBlock(key)) {
+                    invalidateSelf();
+                }
+            }
+
+            for (final Bitmap bitmap : mBitmaps) {
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        private boolean decodeBlock(long key) {
+            final int level = (int) (key >>> 32);
+            final ImageTexture.Tile tile = mLevels[level][(int) key];
+            final int sample = 1 << level;
+            final int border = tile.borderSize;
+
+            // The area with borders in level coordinate, clipped by the level
+            final int left = Math.max(tile.offsetX - border, 0);
+            final int top = Math.max(tile.offsetY - border, 0);
+            final int right = Math.min(tile.offsetX + tile.width + border, levelSize(mWidth, level));
+            final int bottom = Math.min(tile.offsetY + tile.height + border, levelSize(mHeight, level));
+            mRegion.set(left * sample, top * sample,
+                    Math.min(right * sample, mWidth), Math.min(bottom * sample, mHeight));
+            final Bitmap region = mDecoder.decodeRegion(mRegion, sample);
+            if (region == null) {
+                synchronized (mRequestLock) {
+                    mFailed.add(key);
+                }
+                return false;
+            }
+
+            // Lay out the pixels as staged pixels of the tile
+            final int size = ImageTexture.TILE_WHOLE_SIZE[tile.tileSize];
+            Bitmap bitmap = mBitmaps[tile.tileSize];
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+                mBitmaps[tile.tileSize] = bitmap;
+            }
+            bitmap.eraseColor(Color.TRANSPARENT);
+            final int dx = left - (tile.offsetX - border);
+            final int dy = top - (tile.offsetY - border);
+            mDst.set(dx, dy, dx + right - left, dy + bottom - top);
+            mCanvas.setBitmap(bitmap);
+            mCanvas.drawBitmap(region, null, mDst, mPaint);
+            region.recycle();
+
+            final int capacity = 4 * size * size;
+            synchronized (mBlocks) {
+                final Iterator<ByteBuffer> iterator = mBlocks.values().iterator();
+                while (mBlockBytes + capacity > mBlockCacheSize && iterator.hasNext()) {
+                    final ByteBuffer block = iterator.next();
+                    iterator.remove();
+                    mBlockBytes -= block.capacity();
+                    mBufferPool.release(block);
+                }
+            }
+            final ByteBuffer block = mBufferPool.acquire(capacity);
+            bitmap.copyPixelsToBuffer(block);
+            block.position(0);
+
+            synchronized (mBlocks) {
+                if (isRecycled()) {
+                    mBufferPool.release(block);
+                    return false;
+                }
+                mBlocks.put(key, block);
+                mBlockBytes += capacity;
+            }
+            return true;
+        }
+    }
+
+    public StreamingImageTexture(@NonNull RegionDecoder decoder) {
+        this(decoder, DEFAULT_BLOCK_CACHE_SIZE, DEFAULT_TEXTURE_CACHE_SIZE);
+    }
+
+    /**
+     * @param decoder the decoder, recycled with this texture
+     * @param blockCacheSize the max bytes of decoded tile pixels in memory
+     * @param textureCacheSize the max bytes of uploaded tiles, except the coarsest level
+     */
+    public StreamingImageTexture(@NonNull RegionDecoder decoder,
+            long blockCacheSize, long textureCacheSize) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mBlockCacheSize = blockCacheSize;
+        mTextureCacheSize = textureCacheSize;
+        // Room for one more block when the cache is full
+        final int largest = ImageTexture.LARGEST_TILE_SIZE;
+        mBufferPool = new PixelBufferPool(blockCacheSize + 4 * largest * largest);
+
+        // The coarsest level fits in one largest tile
+        final int maxContentSize = ImageTexture.TILE_CONTENT_SIZE[ImageTexture.TILE_LARGEST];
+        int maxLevel = 0;
+        while (levelSize(Math.max(mWidth, mHeight), maxLevel) > maxContentSize) {
+            maxLevel++;
+        }
+        mMaxLevel = maxLevel;
+
+        mLevels = new ImageTexture.Tile[maxLevel + 1][];
+        final ArrayList<ImageTexture.Tile> list = new ArrayList<>();
+        for (int level = 0; level <= maxLevel; level++) {
+            list.clear();
+            ImageTexture.layoutTiles(list, null, false, levelSize(mWidth, level),
+                    levelSize(mHeight, level), 0, 0, ImageTexture.TILE_LARGEST);
+            mLevels[level] = list.toArray(new ImageTexture.Tile[list.size()]);
+        }
+    }
+
+    private static int levelSize(int size, int level) {
+        return (size + (1 << level) - 1) >> level;
+    }
+
+    private static int tileBytes(ImageTexture.Tile tile) {
+        final int size = ImageTexture.TILE_WHOLE_SIZE[tile.tileSize];
+        return 4 * size * size;
+    }
+
+    public final void setCallback(Callback cb) {
+        mCallback = new WeakReference<>(cb);
+    }
+
+    public Callback getCallback() {
+        if (mCallback != null) {
+            return mCallback.get();
+        }
+        return null;
+    }
+
+    public void invalidateSelf() {
+        final Callback callback = getCallback();
+        if (callback != null) {
+            callback.invalidateStreamingImageTexture(this);
+        }
+    }
+
+    /**
+     * Sets the visible area of the canvas, in the coordinate which draw
+     * methods use. Regions out of it are not decoded.
+     *
+     * @param viewport the visible area, null for the whole canvas
+     */
+    public void setViewport(RectF viewport) {
+        if (viewport == null) {
+            mViewport = null;
+        } else {
+            if (mViewport == null) {
+                mViewport = new RectF();
+            }
+            mViewport.set(viewport);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean isOpaque() {
+        return false;
+    }
+
+    @Override
+    public void draw(GLCanvas canvas, int x, int y) {
+        draw(canvas, x, y, mWidth, mHeight);
+    }
+
+    @Override
+    public void draw(GLCanvas canvas, int x, int y, int w, int h) {
+        mTempSource.set(0, 0, mWidth, mHeight);
+        mTempTarget.set(x, y, x + w, y + h);
+        draw(canvas, mTempSource, mTempTarget);
+    }
+
+    @Override
+    public void draw(GLCanvas canvas, RectF source, RectF target) {
+        final float x0 = source.left;
+        final float y0 = source.top;
+        final float x = target.left;
+        final float y = target.top;
+        final float scaleX = target.width() / source.width();
+        final float scaleY = target.height() / source.height();
+        if (!(scaleX > 0 && scaleY > 0)) {
+            return;
+        }
+
+        // The area of the image to draw
+        final RectF visible = mVisibleRect;
+        visible.set(source);
+        if (!visible.intersect(0, 0, mWidth, mHeight)) {
+            return;
+        }
+        final RectF viewport = mViewport;
+        if (viewport != null && !visible.intersect(x0 + (viewport.left - x) / scaleX,
+                y0 + (viewport.top - y) / scaleY,
+                x0 + (viewport.right - x) / scaleX,
+                y0 + (viewport.bottom - y) / scaleY)) {
+            return;
+        }
+
+        mFrame++;
+        mWantedCount = 0;
+        mUploadDueTime = SystemClock.uptimeMillis() + ImageTexture.UPLOAD_TILE_LIMIT;
+
+        final int level = chooseLevel(Math.min(scaleX, scaleY));
+        if (level != mMaxLevel && !isLevelReady(level, visible)) {
+            // Coarse tiles fill the holes until fine tiles are ready
+            drawLevel(canvas, mMaxLevel, visible, x0, y0, x, y, scaleX, scaleY);
+        }
+        drawLevel(canvas, level, visible, x0, y0, x, y, scaleX, scaleY);
+
+        trimResident();
+        publishRequests();
+    }
+
+    // Use the coarsest level which still has a texel for each pixel
+    private int chooseLevel(float scale) {
+        int level = 0;
+        while (level < mMaxLevel && scale * (2 << level) <= 1.0f) {
+            level++;
+        }
+        return level;
+    }
+
+    private static long getKey(int level, int index) {
+        return ((long) level << 32) | index;
+    }
+
+    // Sets the area of the tile in image coordinate to rect,
+    // returns false if it is not visible
+    private static boolean intersectTile(RectF rect, ImageTexture.Tile tile, int sample,
+            RectF visible) {
+        rect.set(tile.offsetX * sample, tile.offsetY * sample,
+                (tile.offsetX + tile.width) * sample, (tile.offsetY + tile.height) * sample);
+        return rect.intersect(visible);
+    }
+
+    @RenderThread
+    private boolean isLevelReady(int level, RectF visible) {
+        final ImageTexture.Tile[] tiles = mLevels[level];
+        final int sample = 1 << level;
+        for (int i = 0, n = tiles.length; i < n; i++) {
+            final ImageTexture.Tile tile = tiles[i];
+            if (tile.isLoaded() || !intersectTile(mSrcRect, tile, sample, visible)) {
+                continue;
+            }
+            synchronized (mBlocks) {
+                if (!mBlocks.containsKey(getKey(level, i))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @RenderThread
+    private void drawLevel(GLCanvas canvas, int level, RectF visible,
+            float x0, float y0, float x, float y, float scaleX, float scaleY) {
+        final RectF src = mSrcRect;
+        final RectF dest = mDestRect;
+        final ImageTexture.Tile[] tiles = mLevels[level];
+        final int sample = 1 << level;
+
+        for (int i = 0, n = tiles.length; i < n; i++) {
+            final ImageTexture.Tile t = tiles[i];
+            if (!intersectTile(src, t, sample, visible) || !prepareTile(canvas, level, i, t)) {
+                continue;
+            }
+            t.drawFrame = mFrame;
+            ImageTexture.mapRect(dest, src, x0, y0, x, y, scaleX, scaleY);
+            // To the coordinate of the tile
+            src.set(src.left / sample - t.offsetX + t.borderSize,
+                    src.top / sample - t.offsetY + t.borderSize,
+                    src.right / sample - t.offsetX + t.borderSize,
+                    src.bottom / sample - t.offsetY + t.borderSize);
+            canvas.drawTexture(t, src, dest);
+        }
+    }
+
+    // Uploads the tile if its pixels are decoded,
+    // returns true if it can be drawn
+    @RenderThread
+    private boolean prepareTile(GLCanvas canvas, int level, int index, ImageTexture.Tile tile) {
+        final boolean pinned = level == mMaxLevel;
+        if (tile.isLoaded()) {
+            if (!pinned) {
+                // Mark it recently drawn
+                mResident.get(tile);
+            }
+            return true;
+        }
+
+        final long key = getKey(level, index);
+        if (SystemClock.uptimeMillis() < mUploadDueTime) {
+            synchronized (mBlocks) {
+                final ByteBuffer block = mBlocks.get(key);
+                if (block != null) {
+                    tile.setBorrowedPixels(block);
+                    tile.updateContent(canvas);
+                }
+            }
+            if (tile.isLoaded()) {
+                if (!pinned) {
+                    mResident.put(tile, tile);
+                    mResidentBytes += tileBytes(tile);
+                }
+                return true;
+            }
+        }
+
+        if (mWantedCount == mWanted.length) {
+            final long[] wanted = new long[mWantedCount * 2];
+            System.arraycopy(mWanted, 0, wanted, 0, mWantedCount);
+            mWanted = wanted;
+        }
+        mWanted[mWantedCount++] = key;
+        return false;
+    }
+
+    @RenderThread
+    private void trimResident() {
+        final Iterator<ImageTexture.Tile> iterator = mResident.keySet().iterator();
+        while (mResidentBytes > mTextureCacheSize && iterator.hasNext()) {
+            final ImageTexture.Tile tile = iterator.next();
+            if (tile.drawFrame == mFrame) {
+                // The others are drawn in this frame too
+                break;
+            }
+            iterator.remove();
+            mResidentBytes -= tileBytes(tile);
+            tile.recycle();
+        }
+    }
+
+    private void publishRequests() {
+        final Runnable runnable;
+        synchronized (mRequestLock) {
+            if (mRecycled) {
+                return;
+            }
+            if (mRequests.length < mWantedCount) {
+                mRequests = new long[mWanted.length];
+            }
+            int count = 0;
+            for (int i = 0; i < mWantedCount; i++) {
+                final long key = mWanted[i];
+                if (mFailed.isEmpty() || !mFailed.contains(key)) {
+                    mRequests[count++] = key;
+                }
+            }
+            mRequestCount = count;
+            mRequestIndex = 0;
+
+            if (mRequestCount == 0 || mDecodeRunnable != null) {
+                return;
+            }
+            runnable = new DecodeRunnable();
+            mDecodeRunnable = runnable;
+        }
+        sThreadExecutor.execute(runnable);
+    }
+
+    private boolean isRecycled() {
+        synchronized (mRequestLock) {
+            return mRecycled;
+        }
+    }
+
+    public void recycle() {
+        for (final ImageTexture.Tile[] tiles : mLevels) {
+            for (final ImageTexture.Tile tile : tiles) {
+                tile.free();
+            }
+        }
+        mResident.clear();
+        mResidentBytes = 0;
+
+        final boolean recycleDecoder;
+        synchronized (mRequestLock) {
+            mRecycled = true;
+            mRequestCount = 0;
+            mFailed.clear();
+            // Or the decode runnable recycles it
+            recycleDecoder = mDecodeRunnable == null;
+        }
+        if (recycleDecoder) {
+            mDecoder.recycle();
+        }
+
+        synchronized (mBlocks) {
+            for (final ByteBuffer block : mBlocks.values()) {
+                mBufferPool.release(block);
+            }
+            mBlocks.clear();
+            mBlockBytes = 0;
+        }
+        mBufferPool.trim();
+    }
+
+    public interface Callback {
+        void invalidateStreamingImageTexture(StreamingImageTexture who);
+    }
+}
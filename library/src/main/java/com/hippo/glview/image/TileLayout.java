@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.glview.image;
+
+import com.hippo.image.ImageRenderer;
+
+import java.util.ArrayList;
+
+/**
+ * How an {@link ImageTexture} cuts its image into tiles. Tiles are squares
+ * of 256, 512 or 1024 pixels, the part out of the image is still allocated
+ * in texture memory, which is the waste of a layout.
+ */
+public abstract class TileLayout {
+
+    /**
+     * Largest tiles first, smaller tiles for the remaining right and bottom
+     * edges. It has the fewest tiles, so the fewest draw calls.
+     */
+    public static final TileLayout LARGEST_FIRST = new TileLayout() {
+        @Override
+        void layout(ArrayList<ImageTexture.Tile> list, ImageRenderer image, boolean opaque,
+                int width, int height) {
+            ImageTexture.layoutTiles(list, image, opaque, width, height, 0, 0,
+                    ImageTexture.TILE_LARGEST);
+        }
+    };
+
+    /**
+     * Tries each tile size as the largest one, and takes the layout which
+     * allocates the least texture memory. Larger tiles win ties.
+     * e.g. a 600x600 image takes a 512 tile and four 256 tiles, half the
+     * texture memory of one 1024 tile.
+     */
+    public static final TileLayout MIN_AREA = new TileLayout() {
+        @Override
+        void layout(ArrayList<ImageTexture.Tile> list, ImageRenderer image, boolean opaque,
+                int width, int height) {
+            ArrayList<ImageTexture.Tile> best = null;
+            long bestBytes = Long.MAX_VALUE;
+            for (int size = ImageTexture.TILE_LARGEST; size >= ImageTexture.TILE_SMALLEST; size--) {
+                final ArrayList<ImageTexture.Tile> tiles = new ArrayList<>();
+                ImageTexture.layoutTiles(tiles, image, opaque, width, height, 0, 0, size);
+                final long bytes = getTileBytes(tiles);
+                if (bytes < bestBytes) {
+                    free(best);
+                    best = tiles;
+                    bestBytes = bytes;
+                } else {
+                    free(tiles);
+                }
+            }
+            list.addAll(best);
+        }
+    };
+
+    private static TileLayout sDefault = LARGEST_FIRST;
+
+    // Not for subclassing out of this package, tiles are internal
+    TileLayout() {}
+
+    abstract void layout(ArrayList<ImageTexture.Tile> list, ImageRenderer image, boolean opaque,
+            int width, int height);
+
+    /**
+     * Sets the layout for textures created without one.
+     */
+    public static synchronized void setDefault(TileLayout layout) {
+        if (layout == null) {
+            throw new NullPointerException("layout == null");
+        }
+        sDefault = layout;
+    }
+
+    public static synchronized TileLayout getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns bytes of texture memory of tiles of an image in this layout.
+     */
+    public long getTileBytes(int width, int height) {
+        final ArrayList<ImageTexture.Tile> tiles = new ArrayList<>();
+        layout(tiles, null, false, width, height);
+        final long bytes = getTileBytes(tiles);
+        free(tiles);
+        return bytes;
+    }
+
+    /**
+     * Returns bytes of texture memory out of the image, in this layout.
+     */
+    public long getWastedBytes(int width, int height) {
+        return getTileBytes(width, height) - 4L * width * height;
+    }
+
+    static long getTileBytes(ArrayList<ImageTexture.Tile> tiles) {
+        long bytes = 0;
+        for (int i = 0, n = tiles.size(); i < n; i++) {
+            bytes += ImageTexture.getTileBytes(tiles.get(i).tileSize);
+        }
+        return bytes;
+    }
+
+    private static void free(ArrayList<ImageTexture.Tile> tiles) {
+        if (tiles != null) {
+            for (int i = 0, n = tiles.size(); i < n; i++) {
+                tiles.get(i).free();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.Color;
+import android.graphics.RectF;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+public class ImageTextureTest {
+
+    @Test
+    public void freeTile_isReused() throws Exception {
+        final ImageTexture.Tile tile = ImageTexture.obtainTile(ImageTexture.TILE_SMALLEST);
+        tile.free();
+        Assert.assertSame(tile, ImageTexture.obtainTile(ImageTexture.TILE_SMALLEST));
+    }
+
+    @Test
+    public void sampleSize_keepsTargetSize() throws Exception {
+        Assert.assertEquals(1, ImageTexture.getSampleSize(3840, 2160, 0, 0));
+        Assert.assertEquals(1, ImageTexture.getSampleSize(3840, 2160, 3000, 2000));
+        Assert.assertEquals(2, ImageTexture.getSampleSize(3840, 2160, 1920, 1080));
+        Assert.assertEquals(8, ImageTexture.getSampleSize(3840, 2160, 200, 200));
+        Assert.assertEquals(1, ImageTexture.getSampleSize(100, 100, 400, 400));
+    }
+
+    @Test
+    public void classify_readsAlpha() throws Exception {
+        // A tile at the left-top corner of a 200x200 image, its outer border is out of the image
+        final ImageTexture.Tile tile = ImageTexture.obtainTile(ImageTexture.TILE_SMALLEST);
+        tile.setSize(ImageTexture.TILE_SMALLEST, 200, 200, 0, 0);
+        final int border = tile.borderSize;
+        final ByteBuffer pixels = newTilePixels(ImageTexture.TILE_SMALLEST);
+
+        // Transparent
+        Assert.assertEquals(ImageTexture.CONTENT_TRANSPARENT, tile.classify(pixels, 200, 200));
+
+        // Opaque black in the image, transparent border out of the image, as render() fills it
+        fillAlpha(pixels, ImageTexture.TILE_SMALLEST, border, border,
+                border + 200, border + 200, 0xff);
+        Assert.assertEquals(ImageTexture.CONTENT_SOLID, tile.classify(pixels, 200, 200));
+
+        // Opaque, not solid
+        final int stride = 4 * ImageTexture.TILE_WHOLE_SIZE[ImageTexture.TILE_SMALLEST];
+        pixels.put(stride * 10 + 4 * 10, (byte) 0xff);
+        Assert.assertEquals(ImageTexture.CONTENT_OPAQUE, tile.classify(pixels, 200, 200));
+
+        // Not opaque, red is full
+        pixels.put(stride * 10 + 4 * 11 + 3, (byte) 0x80);
+        Assert.assertEquals(ImageTexture.CONTENT_MIXED, tile.classify(pixels, 200, 200));
+
+        // The same tile inside a larger image, the transparent border is in the image
+        pixels.put(stride * 10 + 4 * 11 + 3, (byte) 0xff);
+        tile.setSize(ImageTexture.TILE_SMALLEST, 200, 200, 300, 300);
+        Assert.assertEquals(ImageTexture.CONTENT_MIXED, tile.classify(pixels, 1000, 1000));
+
+        tile.free();
+    }
+
+    @Test
+    public void firstImageTexel_skipsOuterBorder() throws Exception {
+        final ImageTexture.Tile tile = ImageTexture.obtainTile(ImageTexture.TILE_SMALLEST);
+        final int border = ImageTexture.TILE_BORDER_SIZE[ImageTexture.TILE_SMALLEST];
+        final int stride = 4 * ImageTexture.TILE_WHOLE_SIZE[ImageTexture.TILE_SMALLEST];
+
+        tile.setSize(ImageTexture.TILE_SMALLEST, 200, 200, 0, 0);
+        Assert.assertEquals(stride * border + 4 * border, tile.firstImageTexel());
+        tile.setSize(ImageTexture.TILE_SMALLEST, 200, 200, 300, 0);
+        Assert.assertEquals(stride * border, tile.firstImageTexel());
+        tile.setSize(ImageTexture.TILE_SMALLEST, 200, 200, 300, 300);
+        Assert.assertEquals(0, tile.firstImageTexel());
+
+        tile.free();
+    }
+
+    private static ByteBuffer newTilePixels(int tileSize) {
+        final int size = ImageTexture.TILE_WHOLE_SIZE[tileSize];
+        return ByteBuffer.allocateDirect(4 * size * size).order(ByteOrder.nativeOrder());
+    }
+
+    // Sets alpha of the texels in the rect, R, G, B, A
+    private static void fillAlpha(ByteBuffer pixels, int tileSize,
+            int left, int top, int right, int bottom, int alpha) {
+        final int stride = 4 * ImageTexture.TILE_WHOLE_SIZE[tileSize];
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                pixels.put(stride * y + 4 * x + 3, (byte) alpha);
+            }
+        }
+    }
+
+    @Test
+    public void cullTiles_coversVisibleArea() throws Exception {
+        final ArrayList<ImageTexture.Tile> list = new ArrayList<>();
+        ImageTexture.layoutTiles(list, null, false, 3000, 2000, 0, 0, ImageTexture.TILE_LARGEST);
+        final ImageTexture.Tile[] tiles = list.toArray(new ImageTexture.Tile[list.size()]);
+        final int[] visibleTiles = new int[tiles.length];
+        final float[] geometry = new float[ImageTexture.GEOMETRY_SIZE * tiles.length];
+
+        final int count = ImageTexture.cullTiles(tiles, visibleTiles, geometry,
+                100, 100, 1100, 700, 0, 0, 10, 20, 0.5f, 0.5f);
+
+        int expected = 0;
+        for (ImageTexture.Tile tile : tiles) {
+            if (tile.offsetX < 1100 && 100 < tile.offsetX + tile.width &&
+                    tile.offsetY < 700 && 100 < tile.offsetY + tile.height) {
+                expected++;
+            }
+        }
+        Assert.assertEquals(expected, count);
+
+        float sourceArea = 0;
+        float targetArea = 0;
+        for (int i = 0; i < count; i++) {
+            final int g = ImageTexture.GEOMETRY_SIZE * i;
+            sourceArea += (geometry[g + 2] - geometry[g]) * (geometry[g + 3] - geometry[g + 1]);
+            targetArea += (geometry[g + 6] - geometry[g + 4]) * (geometry[g + 7] - geometry[g + 5]);
+            Assert.assertTrue(geometry[g + 4] >= 60 && geometry[g + 6] <= 560);
+            Assert.assertTrue(geometry[g + 5] >= 70 && geometry[g + 7] <= 370);
+        }
+        Assert.assertEquals(1000 * 600, sourceArea, 1);
+        Assert.assertEquals(500 * 300, targetArea, 1);
+
+        for (ImageTexture.Tile tile : list) {
+            tile.free();
+        }
+    }
+
+    @Test
+    public void drawCulledTiles_oneDrawForEachTile() throws Exception {
+        final ImageTexture.Tile[] tiles = layoutTiles(3000, 2000);
+        final int[] visibleTiles = new int[tiles.length];
+        final float[] geometry = new float[ImageTexture.GEOMETRY_SIZE * tiles.length];
+        final int count = ImageTexture.cullTiles(tiles, visibleTiles, geometry,
+                100, 100, 1100, 700, 0, 0, 0, 0, 1.0f, 1.0f);
+
+        final RecordingGLCanvas canvas = new RecordingGLCanvas();
+        ImageTexture.drawCulledTiles(canvas, tiles, visibleTiles, count, geometry,
+                new RectF(), new RectF(), false, false, 0, 0.0f);
+        Assert.assertEquals(count, canvas.getDrawCount());
+        Assert.assertEquals(count, canvas.getTextureCount());
+        Assert.assertEquals(0, canvas.getFillCount());
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(1, canvas.getDrawCount(tiles[visibleTiles[i]]));
+        }
+
+        canvas.clear();
+        ImageTexture.drawCulledTiles(canvas, tiles, visibleTiles, count, geometry,
+                new RectF(), new RectF(), false, true, Color.BLACK, 0.5f);
+        Assert.assertEquals(count, canvas.getMixedCount());
+
+        freeTiles(tiles);
+    }
+
+    @Test
+    public void drawCulledTiles_skipsTransparentAndFillsSolid() throws Exception {
+        final ImageTexture.Tile[] tiles = layoutTiles(3000, 2000);
+        final int[] visibleTiles = new int[tiles.length];
+        final float[] geometry = new float[ImageTexture.GEOMETRY_SIZE * tiles.length];
+        final int count = ImageTexture.cullTiles(tiles, visibleTiles, geometry,
+                0, 0, 3000, 2000, 0, 0, 0, 0, 1.0f, 1.0f);
+        Assert.assertEquals(tiles.length, count);
+
+        tiles[0].content = ImageTexture.CONTENT_TRANSPARENT;
+        tiles[1].content = ImageTexture.CONTENT_SOLID;
+        tiles[1].solidColor = Color.WHITE;
+
+        final RecordingGLCanvas canvas = new RecordingGLCanvas();
+        ImageTexture.drawCulledTiles(canvas, tiles, visibleTiles, count, geometry,
+                new RectF(), new RectF(), false, false, 0, 0.0f);
+        Assert.assertEquals(count - 2, canvas.getDrawCount());
+        Assert.assertEquals(0, canvas.getDrawCount(tiles[0]));
+        Assert.assertEquals(0, canvas.getDrawCount(tiles[1]));
+        Assert.assertEquals(1, canvas.getFillCount());
+
+        freeTiles(tiles);
+    }
+
+    @Test
+    public void drawCulledTiles_leavesPendingTilesToUploader() throws Exception {
+        final ImageTexture.Tile[] tiles = layoutTiles(3000, 2000);
+        final int[] visibleTiles = new int[tiles.length];
+        final float[] geometry = new float[ImageTexture.GEOMETRY_SIZE * tiles.length];
+        final int count = ImageTexture.cullTiles(tiles, visibleTiles, geometry,
+                0, 0, 3000, 2000, 0, 0, 0, 0, 1.0f, 1.0f);
+        for (ImageTexture.Tile tile : tiles) {
+            tile.uploadPending = true;
+        }
+        tiles[0].uploadPending = false;
+
+        final RecordingGLCanvas canvas = new RecordingGLCanvas();
+        ImageTexture.drawCulledTiles(canvas, tiles, visibleTiles, count, geometry,
+                new RectF(), new RectF(), true, false, 0, 0.0f);
+        Assert.assertEquals(1, canvas.getDrawCount());
+        Assert.assertEquals(1, canvas.getDrawCount(tiles[0]));
+
+        // Without an uploader, they are uploaded when drawn
+        canvas.clear();
+        ImageTexture.drawCulledTiles(canvas, tiles, visibleTiles, count, geometry,
+                new RectF(), new RectF(), false, false, 0, 0.0f);
+        Assert.assertEquals(count, canvas.getDrawCount());
+
+        freeTiles(tiles);
+    }
+
+    private static ImageTexture.Tile[] layoutTiles(int width, int height) {
+        final ArrayList<ImageTexture.Tile> list = new ArrayList<>();
+        ImageTexture.layoutTiles(list, null, false, width, height, 0, 0, ImageTexture.TILE_LARGEST);
+        return list.toArray(new ImageTexture.Tile[list.size()]);
+    }
+
+    private static void freeTiles(ImageTexture.Tile[] tiles) {
+        for (ImageTexture.Tile tile : tiles) {
+            tile.free();
+        }
+    }
+}
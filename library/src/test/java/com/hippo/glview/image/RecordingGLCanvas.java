@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.hippo.glview.glrenderer.BasicTexture;
+import com.hippo.glview.glrenderer.GLCanvas;
+import com.hippo.glview.glrenderer.GLId;
+import com.hippo.glview.glrenderer.GLPaint;
+import com.hippo.glview.glrenderer.RawTexture;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.IdentityHashMap;
+
+/**
+ * A {@link GLCanvas} without GL context. It draws nothing, but counts
+ * draws, fills, the textures drawn and the bytes uploaded through it,
+ * so tests can check how much work a draw takes. It is cheap enough
+ * for benchmarks.
+ */
+final class RecordingGLCanvas implements GLCanvas {
+
+    private int mDrawCount;
+    private int mMixedCount;
+    private int mFillCount;
+    private long mUploadedBytes;
+    // Textures drawn, to the times they are drawn
+    private final IdentityHashMap<BasicTexture, Integer> mTextures = new IdentityHashMap<>();
+    private float mAlpha = 1.0f;
+
+    // drawTexture() and drawMixed() calls
+    public int getDrawCount() {
+        return mDrawCount;
+    }
+
+    public int getMixedCount() {
+        return mMixedCount;
+    }
+
+    public int getFillCount() {
+        return mFillCount;
+    }
+
+    // The number of different textures drawn
+    public int getTextureCount() {
+        return mTextures.size();
+    }
+
+    public int getDrawCount(BasicTexture texture) {
+        final Integer count = mTextures.get(texture);
+        return count != null ? count : 0;
+    }
+
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    public void clear() {
+        mDrawCount = 0;
+        mMixedCount = 0;
+        mFillCount = 0;
+        mUploadedBytes = 0;
+        mTextures.clear();
+    }
+
+    private void recordTexture(BasicTexture texture) {
+        mDrawCount++;
+        final Integer count = mTextures.get(texture);
+        mTextures.put(texture, count != null ? count + 1 : 1);
+    }
+
+    @Override
+    public GLId getGLId() {
+        return null;
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+    }
+
+    @Override
+    public void clearBuffer() {
+    }
+
+    @Override
+    public void clearBuffer(float[] argb) {
+    }
+
+    @Override
+    public void setAlpha(float alpha) {
+        mAlpha = alpha;
+    }
+
+    @Override
+    public float getAlpha() {
+        return mAlpha;
+    }
+
+    @Override
+    public void multiplyAlpha(float alpha) {
+        mAlpha *= alpha;
+    }
+
+    @Override
+    public void translate(float x, float y, float z) {
+    }
+
+    @Override
+    public void translate(float x, float y) {
+    }
+
+    @Override
+    public void scale(float sx, float sy, float sz) {
+    }
+
+    @Override
+    public void rotate(float angle, float x, float y, float z) {
+    }
+
+    @Override
+    public void multiplyMatrix(float[] matrix, int offset) {
+    }
+
+    @Override
+    public void save() {
+    }
+
+    @Override
+    public void save(int saveFlags) {
+    }
+
+    @Override
+    public void restore() {
+    }
+
+    @Override
+    public void drawLine(float x1, float y1, float x2, float y2, GLPaint paint) {
+    }
+
+    @Override
+    public void drawRect(float x1, float y1, float x2, float y2, GLPaint paint) {
+    }
+
+    @Override
+    public void fillRect(float x, float y, float width, float height, int color) {
+        mFillCount++;
+    }
+
+    @Override
+    public void drawTexture(BasicTexture texture, int x, int y, int width, int height) {
+        recordTexture(texture);
+    }
+
+    @Override
+    public void drawMesh(BasicTexture tex, int x, int y, int xyBuffer, int uvBuffer,
+            int indexBuffer, int indexCount) {
+        recordTexture(tex);
+    }
+
+    @Override
+    public void drawTexture(BasicTexture texture, RectF source, RectF target) {
+        recordTexture(texture);
+    }
+
+    @Override
+    public void drawTexture(BasicTexture texture, float[] textureTransform,
+            int x, int y, int w, int h) {
+        recordTexture(texture);
+    }
+
+    @Override
+    public void drawMixed(BasicTexture from, int toColor, float ratio,
+            int x, int y, int w, int h) {
+        mMixedCount++;
+        recordTexture(from);
+    }
+
+    @Override
+    public void drawMixed(BasicTexture from, int toColor, float ratio,
+            RectF src, RectF target) {
+        mMixedCount++;
+        recordTexture(from);
+    }
+
+    @Override
+    public boolean unloadTexture(BasicTexture texture) {
+        return false;
+    }
+
+    @Override
+    public void deleteBuffer(int bufferId) {
+    }
+
+    @Override
+    public void deleteRecycledResources() {
+    }
+
+    @Override
+    public void dumpStatisticsAndClear() {
+    }
+
+    @Override
+    public void beginRenderTarget(RawTexture texture) {
+    }
+
+    @Override
+    public void endRenderTarget() {
+    }
+
+    @Override
+    public void setTextureParameters(BasicTexture texture) {
+    }
+
+    @Override
+    public void initializeTextureSize(BasicTexture texture, int format, int type) {
+        mUploadedBytes += 4L * texture.getTextureWidth() * texture.getTextureHeight();
+    }
+
+    @Override
+    public void initializeTexture(BasicTexture texture, Bitmap bitmap) {
+        mUploadedBytes += 4L * texture.getTextureWidth() * texture.getTextureHeight();
+    }
+
+    @Override
+    public void texSubImage2D(BasicTexture texture, int xOffset, int yOffset, Bitmap bitmap,
+            int format, int type) {
+        mUploadedBytes += 4L * bitmap.getWidth() * bitmap.getHeight();
+    }
+
+    @Override
+    public int uploadBuffer(FloatBuffer buffer) {
+        mUploadedBytes += 4L * buffer.capacity();
+        return 0;
+    }
+
+    @Override
+    public int uploadBuffer(ByteBuffer buffer) {
+        mUploadedBytes += buffer.capacity();
+        return 0;
+    }
+
+    @Override
+    public void recoverFromLightCycle() {
+    }
+
+    @Override
+    public void getBounds(Rect bounds, int x, int y, int width, int height) {
+    }
+}
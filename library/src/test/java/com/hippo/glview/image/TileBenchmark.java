@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import android.graphics.Color;
+import android.graphics.RectF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of laying out, culling and drawing tiles, for images of different sizes.
+ * Run it with {@code ./gradlew :library:jmh}.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileBenchmark {
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int size;
+
+    private final ArrayList<ImageTexture.Tile> mTiles = new ArrayList<>();
+    private final ArrayList<ImageTexture.Tile> mLayoutTiles = new ArrayList<>();
+    private ImageTexture.Tile[] mTileArray;
+    private int[] mVisibleTiles;
+    private float[] mGeometry;
+    private int mPan;
+
+    // The whole image is culled once for draw benchmarks
+    private int[] mDrawTiles;
+    private float[] mDrawGeometry;
+    private int mDrawCount;
+    private final RecordingGLCanvas mCanvas = new RecordingGLCanvas();
+    private final RectF mSrc = new RectF();
+    private final RectF mDest = new RectF();
+
+    @Setup
+    public void setup() {
+        ImageTexture.layoutTiles(mTiles, null, false, size, size, 0, 0, ImageTexture.TILE_LARGEST);
+        mTileArray = mTiles.toArray(new ImageTexture.Tile[mTiles.size()]);
+        mVisibleTiles = new int[mTileArray.length];
+        mGeometry = new float[ImageTexture.GEOMETRY_SIZE * mTileArray.length];
+
+        mDrawTiles = new int[mTileArray.length];
+        mDrawGeometry = new float[ImageTexture.GEOMETRY_SIZE * mTileArray.length];
+        mDrawCount = ImageTexture.cullTiles(mTileArray, mDrawTiles, mDrawGeometry,
+                0, 0, size, size, 0, 0, 0, 0, 1.0f, 1.0f);
+        // Some empty and solid tiles, like a page with margins
+        for (int i = 0; i < mTileArray.length; i += 8) {
+            mTileArray[i].content = ImageTexture.CONTENT_TRANSPARENT;
+            if (i + 1 < mTileArray.length) {
+                mTileArray[i + 1].content = ImageTexture.CONTENT_SOLID;
+                mTileArray[i + 1].solidColor = Color.WHITE;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (final ImageTexture.Tile tile : mTiles) {
+            tile.free();
+        }
+        mTiles.clear();
+    }
+
+    // Tiles are freed in each call, so it measures layout with the pool warmed up
+    @Benchmark
+    public int layoutTiles() {
+        final ArrayList<ImageTexture.Tile> list = mLayoutTiles;
+        ImageTexture.layoutTiles(list, null, false, size, size, 0, 0, ImageTexture.TILE_LARGEST);
+        final int count = list.size();
+        for (int i = 0; i < count; i++) {
+            list.get(i).free();
+        }
+        list.clear();
+        return count;
+    }
+
+    // A 1080x1920 viewport panning over the image at 2x zoom, like each frame of a drag
+    @Benchmark
+    public int cullTiles() {
+        final int pan = mPan = (mPan + 7) % size;
+        return ImageTexture.cullTiles(mTileArray, mVisibleTiles, mGeometry,
+                pan, pan, pan + 540, pan + 960, pan, pan, 0, 0, 2.0f, 2.0f);
+    }
+
+    // The per-frame loop of drawTiles() over all tiles of the image
+    @Benchmark
+    public int drawTiles() {
+        final RecordingGLCanvas canvas = mCanvas;
+        ImageTexture.drawCulledTiles(canvas, mTileArray, mDrawTiles, mDrawCount, mDrawGeometry,
+                mSrc, mDest, false, false, 0, 0.0f);
+        final int count = canvas.getDrawCount() + canvas.getFillCount();
+        canvas.clear();
+        return count;
+    }
+
+    @Benchmark
+    public int drawMixedTiles() {
+        final RecordingGLCanvas canvas = mCanvas;
+        ImageTexture.drawCulledTiles(canvas, mTileArray, mDrawTiles, mDrawCount, mDrawGeometry,
+                mSrc, mDest, false, true, Color.BLACK, 0.5f);
+        final int count = canvas.getDrawCount() + canvas.getFillCount();
+        canvas.clear();
+        return count;
+    }
+}
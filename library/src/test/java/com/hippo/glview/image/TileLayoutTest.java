@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.glview.image;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TileLayoutTest {
+
+    @Test
+    public void minAreaLayout_wastesLess() throws Exception {
+        final int max = ImageTexture.TILE_CONTENT_SIZE[ImageTexture.TILE_LARGEST] * 3;
+        for (int i = 100; i < max; i += 100) {
+            for (int j = 100; j < max; j += 100) {
+                final long largestFirst = TileLayout.LARGEST_FIRST.getWastedBytes(i, j);
+                final long minArea = TileLayout.MIN_AREA.getWastedBytes(i, j);
+                Assert.assertTrue(minArea >= 0);
+                Assert.assertTrue(minArea <= largestFirst);
+            }
+        }
+        Assert.assertTrue(TileLayout.MIN_AREA.getWastedBytes(1100, 1600) <
+                TileLayout.LARGEST_FIRST.getWastedBytes(1100, 1600));
+        // A 512 tile and four 256 tiles, instead of a 1024 tile
+        Assert.assertEquals(TileLayout.LARGEST_FIRST.getTileBytes(600, 600),
+                2 * TileLayout.MIN_AREA.getTileBytes(600, 600));
+    }
+}